@@ -1,3 +1,3 @@
 #!/bin/bash
 
-java -cp ./summon_statemgr.jar com.proquest.magnolia.statemgr.zkmaster.ZKMaster 127.0.0.1:2181 ./mastercfg.properties $1 
\ No newline at end of file
+java -cp ./summon_statemgr.jar com.proquest.magnolia.statemgr.zkmaster.ZKMaster 127.0.0.1:2181 ./mastercfg.properties "$@" 
\ No newline at end of file
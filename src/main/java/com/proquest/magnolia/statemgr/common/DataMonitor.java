@@ -1,30 +1,39 @@
 package com.proquest.magnolia.statemgr.common;
 
-import com.proquest.magnolia.statemgr.zkclient.ZKClient;
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
-import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Monitors the data and existence of a zk node.
+ * Monitors the data and existence of a zk node. Each notification costs a single watched
+ * <code>getData</code>; changes are detected from the node's modification zxid. The listener
+ * is called through the client's event dispatcher, in order for each node, so it never runs
+ * on (or blocks) the ZooKeeper event thread. The reads and delivered changes are recorded in
+ * the client's {@link ZKMetrics}, and the changes in its journal.
  */
-public class DataMonitor implements Watcher, StatCallback, ZKConstants {
+public class DataMonitor implements Watcher, DataCallback, StatCallback, ZKConstants {
 
   private Logger logger = Logger.getLogger(DataMonitor.class.getName());
   
-  private ZKClient zk;
+  private ZKClientBase zk;
   private List<String> znodes;
   private DataMonitorListener listener;
-  private Map<String,String> prevPathDataMap = new HashMap<String, String>();
-  boolean isDead;
+  private ConcurrentMap<String,Long> pathVersions = new ConcurrentHashMap<String, Long>();
+  private ConcurrentMap<String,long[]> readStarts = new ConcurrentHashMap<String, long[]>();
+  private ConcurrentMap<String,String> recordValues = new ConcurrentHashMap<String, String>();
+  private String recordField;
+  volatile boolean isDead;
 
   /**
    * Constructor.
@@ -32,14 +41,74 @@ public class DataMonitor implements Watcher, StatCallback, ZKConstants {
    * @param znodes    Array of z-nodes to watch
    * @param listener  The DataMonitorListener used to callback with notifications
    */
-  public DataMonitor(ZKClient zk, List<String> znodes, DataMonitorListener listener) {
+  public DataMonitor(ZKClientBase zk, List<String> znodes, DataMonitorListener listener) {
+    this(zk, znodes, listener, Collections.<String, Long>emptyMap(), null);
+  }
+
+  /**
+   * Constructor for nodes some of which the listener already knows, i.e. from a journaled read.
+   * Those nodes are only checked with an <code>exists</code>, which leaves the watch, and are
+   * read and notified only if they have changed since. A listener that only acts on one field
+   * of stage records names it, so the record writes that leave it unchanged are not notified.
+   * @param zk          ZKClient reference
+   * @param znodes      Array of z-nodes to watch
+   * @param listener    The DataMonitorListener used to callback with notifications
+   * @param seen        The modification zxid of every node the listener already knows
+   * @param recordField The legacy sub-node of the record field to notify the changes of, or
+   *                    null to notify every change
+   */
+  public DataMonitor(ZKClientBase zk, List<String> znodes, DataMonitorListener listener, Map<String,Long> seen,
+                     String recordField) {
     this.zk = zk;
     this.znodes = znodes;
     this.listener = listener;
-    // Get things started by checking if the node exists. We are going
+    this.recordField = recordField;
+    // Only the events of our own nodes (and of the connection) are dispatched to us
+    zk.addWatch(this);
+    for (String znode : znodes) {
+      zk.addWatch(znode, this);
+      readStarts.put(znode, new long[1]);
+    }
+    // Get things started by reading the nodes. We are going
     // to be completely event driven
     for (String znode : znodes) {
-      zk.getZookeeper().exists(znode, true, this, null);
+      Long mzxid = seen.get(znode);
+      if (mzxid != null) {
+        pathVersions.put(znode, mzxid);
+        watchExistence(znode);
+      } else {
+        watch(znode);
+      }
+    }
+  }
+
+  /**
+   * Reads the node data and leaves a watch on the node.
+   */
+  private void watch(String znode) {
+    markStart(znode);
+    zk.getZookeeper().getData(znode, true, this, null);
+  }
+
+  private void watchExistence(String znode) {
+    markStart(znode);
+    zk.getZookeeper().exists(znode, true, this, null);
+  }
+
+  /**
+   * Notes when the read of a node was issued; the slot of each node is allocated up front.
+   */
+  private void markStart(String znode) {
+    long[] start = readStarts.get(znode);
+    if (start != null) {
+      start[0] = System.nanoTime();
+    }
+  }
+
+  private void recordRead(ZKMetrics.Op op, String path, int rc) {
+    long[] start = readStarts.get(path);
+    if (start != null) {
+      zk.getMetrics().record(op, start[0], (rc == Code.NoNode) ? Code.Ok : rc);
     }
   }
 
@@ -81,63 +150,150 @@ public class DataMonitor implements Watcher, StatCallback, ZKConstants {
           // disconnected will be delivered (in order of course)
           break;
         case Expired:
-          // It's all over
-          logger.warn("The session has expired.");
-          isDead = true;
-          listener.closing(KeeperException.Code.SessionExpired);
+          // The client re-establishes the session and hands us an event for every
+          // node once it has, so the nodes are read again and resynced by version
+          logger.warn("The session has expired, waiting for it to be re-established.");
           break;
       }
     } else {
       // Something has changed on the node, let's find out
-      for (String znode : znodes) {
-        if (znode.equals(path)) {
-          zk.getZookeeper().exists(znode, true, this, null);
-        }
-      }
+      watch(path);
     }
   }
 
   /**
-   * Handler to process the node and data updates. If applicable, the listener
-   * interface will be called to do the actual work.
+   * Handler to process the node data updates. If the node data is newer than what has been
+   * seen so far, the listener interface will be called to do the actual work.
    * @param rc
    * @param path
    * @param ctx
+   * @param data
    * @param stat
    */
-  public void processResult(int rc, String path, Object ctx, Stat stat) {
-    boolean exists = false;
+  public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+    recordRead(ZKMetrics.Op.GetData, path, rc);
     switch (rc) {
       case Code.Ok:
         logger.debug(String.format("Node found {node=[%s]}", path));
-        exists = true;
         break;
       case Code.NoNode:
+        // Watch for the node to be created
         logger.warn(String.format("Node not found {node=[%s]}", path));
-        exists = false;
-        break;
+        watchExistence(path);
+        return;
       case Code.SessionExpired:
+        // Read again when the session has been re-established
+        logger.warn(String.format("Session expired {node=[%s]}", path));
+        return;
       case Code.NoAuth:
-        logger.warn("Session expired");
-        isDead = true;
-        listener.closing(rc);
+        logger.warn(String.format("Not authorized {node=[%s]}", path));
+        closing(rc);
         return;
       default:
-        logger.info("Retry errors");
-        for (String znode : znodes) {
-          zk.getZookeeper().exists(znode, true, this, null);
-        }
+        logger.info(String.format("Retry errors {node=[%s]}", path));
+        watch(path);
+        return;
+    }
+
+    if (isNewer(path, stat.getMzxid())) {
+      zk.journal(StateJournal.OBSERVED, path, data, stat);
+      final String p = path;
+      final String d = ZKClientBase.decode(data);
+      if (!isFieldChanged(path, d)) {
         return;
+      }
+      zk.getMetrics().recordEvent(path);
+      boolean queued = zk.getEventDispatcher().dispatch(path, new Runnable() {
+        public void run() {
+          logger.info(String.format("Calling listener for node data change {node=[%s], data=[%s]}", p, d));
+          listener.exists(p, d);
+        }
+      });
+      if (!queued) {
+        // Forget the version so the change is delivered when the node is read again later
+        pathVersions.remove(path);
+        recordValues.remove(path);
+        zk.getScheduler().schedule(new Runnable() {
+          public void run() {
+            watch(p);
+          }
+        }, zk.getRetryDelay(), TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Marks the monitor dead and notifies the listener off the event thread.
+   */
+  private void closing(final int rc) {
+    isDead = true;
+    zk.getEventDispatcher().dispatch(this, new Runnable() {
+      public void run() {
+        listener.closing(rc);
+      }
+    });
+  }
+
+  /**
+   * Handler for the existence watch left on nodes that do not exist yet, or that are already known.
+   * @param rc
+   * @param path
+   * @param ctx
+   * @param stat
+   */
+  public void processResult(int rc, String path, Object ctx, Stat stat) {
+    recordRead(ZKMetrics.Op.Exists, path, rc);
+    switch (rc) {
+      case Code.Ok:
+        // Created or changed in the meantime
+        Long seen = pathVersions.get(path);
+        if (seen == null || stat.getMzxid() > seen) {
+          watch(path);
+        }
+        break;
+      case Code.NoNode:
+        break;
+      case Code.SessionExpired:
+        logger.warn(String.format("Session expired {node=[%s]}", path));
+        break;
+      case Code.NoAuth:
+        logger.warn(String.format("Not authorized {node=[%s]}", path));
+        closing(rc);
+        break;
+      default:
+        logger.info(String.format("Retry errors {node=[%s]}", path));
+        watchExistence(path);
+    }
+  }
+
+  /**
+   * Records the value of the notified field of a record node.
+   * @return true if the node is not a record, or if the field has changed
+   */
+  private boolean isFieldChanged(String path, String data) {
+    if (recordField == null || !path.endsWith(NODE_RECORD)) {
+      return true;
     }
+    String value = StageRecord.parse(data, -1).get(recordField);
+    return !value.equals(recordValues.put(path, value));
+  }
 
-    if (exists) {
-      String d = zk.getData(path);
-      String prevData = prevPathDataMap.get(path);
-      if ((d == null && d != prevData) || (d != null && !d.equals(prevData))) {
-        logger.info(String.format("Calling listener for node data change {node=[%s], data=[%s]}", path, d));
-        listener.exists(path, d);
-        prevPathDataMap.put(path, d);
+  /**
+   * Records the node's modification zxid.
+   * @return true if it is newer than the last one seen for the node
+   */
+  private boolean isNewer(String path, long mzxid) {
+    while (true) {
+      Long prev = pathVersions.putIfAbsent(path, mzxid);
+      if (prev == null) {
+        return true;
+      }
+      if (prev >= mzxid) {
+        return false;
+      }
+      if (pathVersions.replace(path, prev, mzxid)) {
+        return true;
       }
     }
   }
-}
\ No newline at end of file
+}
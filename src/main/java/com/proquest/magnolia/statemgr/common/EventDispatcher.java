@@ -0,0 +1,189 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands event callbacks off the ZooKeeper event thread to a pool of worker threads. Tasks
+ * dispatched with the same key (typically the node path) run one at a time in dispatch
+ * order; tasks with different keys run concurrently. The number of queued tasks is bounded
+ * so a stalled listener cannot grow the queue without limit.
+ */
+public class EventDispatcher {
+
+  private static final Logger logger = Logger.getLogger(EventDispatcher.class.getName());
+
+  private ExecutorService executor;
+  private int queueBound;
+  private Map<Object,KeyQueue> queues = new HashMap<Object, KeyQueue>();
+  private AtomicInteger queued = new AtomicInteger(0);
+  private AtomicLong dispatched = new AtomicLong(0);
+  private AtomicLong rejected = new AtomicLong(0);
+  private AtomicLong totalLag = new AtomicLong(0);
+  private volatile long lastLag = 0;
+  private volatile long maxLag = 0;
+  private final LatencyHistogram lagHistogram = new LatencyHistogram();
+
+  /**
+   * Constructor.
+   * @param threads     Number of worker threads
+   * @param queueBound  Maximum number of queued tasks across all keys
+   */
+  public EventDispatcher(int threads, int queueBound) {
+    this.queueBound = queueBound;
+    this.executor = Executors.newFixedThreadPool(threads, ThreadPools.newDaemonThreadFactory("zk-dispatch"));
+  }
+
+  /**
+   * Queues the task behind any other tasks dispatched with the same key.
+   * @param key   The ordering key
+   * @param task  The task to run
+   * @return false if the task was rejected because the queue is full
+   */
+  public boolean dispatch(Object key, Runnable task) {
+    if (queued.incrementAndGet() > queueBound) {
+      queued.decrementAndGet();
+      rejected.incrementAndGet();
+      logger.warn(String.format("Event queue is full, rejecting task {key=[%s], bound=[%d]}", key, queueBound));
+      return false;
+    }
+    boolean schedule = false;
+    KeyQueue queue;
+    synchronized (queues) {
+      queue = queues.get(key);
+      if (queue == null) {
+        queue = new KeyQueue(key);
+        queues.put(key, queue);
+      }
+      queue.tasks.add(new QueuedTask(task));
+      if (!queue.running) {
+        queue.running = true;
+        schedule = true;
+      }
+    }
+    if (schedule) {
+      executor.execute(queue);
+    }
+    return true;
+  }
+
+  /**
+   * Stops the worker threads; queued tasks are discarded.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return  The number of tasks waiting to run or running
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  public int getQueueBound() {
+    return queueBound;
+  }
+
+  public long getDispatchedCount() {
+    return dispatched.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return  The time the most recently started task waited in the queue, in milliseconds
+   */
+  public long getLastLagMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lastLag);
+  }
+
+  /**
+   * @return  The longest time any task waited in the queue, in milliseconds
+   */
+  public long getMaxLagMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxLag);
+  }
+
+  /**
+   * @return  The average time tasks waited in the queue, in milliseconds
+   */
+  public double getAverageLagMillis() {
+    long count = dispatched.get();
+    return (count > 0) ? totalLag.get() / (count * 1000000.0) : 0.0;
+  }
+
+  /**
+   * @return  The distribution of the time tasks waited in the queue
+   */
+  public LatencyHistogram getLagHistogram() {
+    return lagHistogram;
+  }
+
+  private void recordLag(long lag) {
+    lagHistogram.record(lag);
+    lastLag = lag;
+    if (lag > maxLag) {
+      maxLag = lag;
+    }
+    totalLag.addAndGet(lag);
+    dispatched.incrementAndGet();
+  }
+
+  /**
+   * A task and the time it was queued.
+   */
+  private static class QueuedTask {
+    final Runnable task;
+    final long queuedAt = System.nanoTime();
+
+    QueuedTask(Runnable task) {
+      this.task = task;
+    }
+  }
+
+  /**
+   * The tasks of a single key; drained by at most one worker at a time.
+   */
+  private class KeyQueue implements Runnable {
+    final Object key;
+    final LinkedList<QueuedTask> tasks = new LinkedList<QueuedTask>();
+    boolean running = false;
+
+    KeyQueue(Object key) {
+      this.key = key;
+    }
+
+    public void run() {
+      while (true) {
+        QueuedTask next;
+        synchronized (queues) {
+          next = tasks.poll();
+          if (next == null) {
+            running = false;
+            queues.remove(key);
+            return;
+          }
+        }
+        recordLag(System.nanoTime() - next.queuedAt);
+        try {
+          next.task.run();
+        } catch (RuntimeException e) {
+          logger.error(String.format("Event task failed {key=[%s]}", key), e);
+        } finally {
+          queued.decrementAndGet();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the MBeans of the state manager with the platform MBean server, under the
+ * <code>com.proquest.magnolia.statemgr</code> domain. Failing to register only loses the
+ * instrumentation, so it is logged and otherwise ignored.
+ */
+public class Jmx {
+
+  private static final Logger logger = Logger.getLogger(Jmx.class.getName());
+
+  public static final String DOMAIN = "com.proquest.magnolia.statemgr";
+
+  private Jmx() {
+  }
+
+  /**
+   * Registers the MBean, replacing any registered under the same name.
+   * @param mbean The MBean
+   * @param type  The type key of the name, i.e. ZooKeeper
+   * @param name  The name key of the name, or null if there is only one of the type
+   * @return The name the MBean was registered under, or null if it could not be registered
+   */
+  public static ObjectName register(Object mbean, String type, String name) {
+    try {
+      ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ((name != null) ? ",name=" + ObjectName.quote(name) : ""));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.registerMBean(mbean, objectName);
+      } catch (InstanceAlreadyExistsException e) {
+        server.unregisterMBean(objectName);
+        server.registerMBean(mbean, objectName);
+      }
+      return objectName;
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to register the MBean {type=[%s], name=[%s]}", type, name), e);
+      return null;
+    }
+  }
+
+  /**
+   * Unregisters the MBean, if it is registered.
+   * @param objectName  The name returned by {@link #register(Object, String, String)}, may be null
+   */
+  public static void unregister(ObjectName objectName) {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (Exception e) {
+      logger.debug(String.format("Unable to unregister the MBean {name=[%s]}", objectName), e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.proquest.magnolia.statemgr.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies. Latencies are counted in microsecond buckets: four
+ * buckets per power of two, so a percentile is off by at most an eighth of its value.
+ * Recording only increments counters, so it allocates nothing and is cheap enough for the
+ * ZooKeeper callbacks; the percentiles are computed when the histogram is read.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKETS = 4;
+  private static final int SUB_BITS = 2;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong errors = new AtomicLong(0);
+  private final AtomicLong totalMicros = new AtomicLong(0);
+  private final AtomicLong maxMicros = new AtomicLong(0);
+
+  /**
+   * Records a latency.
+   * @param nanos The latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = Math.max(nanos / 1000, 0);
+    buckets.incrementAndGet(getBucket(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  /**
+   * Records the latency of an operation started at the specified time.
+   * @param startNanos  The <code>System.nanoTime</code> the operation started at
+   * @param failed      true if the operation failed
+   */
+  public void recordSince(long startNanos, boolean failed) {
+    record(System.nanoTime() - startNanos);
+    if (failed) {
+      errors.incrementAndGet();
+    }
+  }
+
+  /**
+   * Counts a failure without a latency.
+   */
+  public void recordError() {
+    errors.incrementAndGet();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return  The count, errors, mean, percentiles and maximum recorded so far
+   */
+  public LatencySnapshot getSnapshot() {
+    long n = count.get();
+    double mean = (n > 0) ? totalMicros.get() / (double) n / 1000.0 : 0.0;
+    return new LatencySnapshot(n, errors.get(), mean, getPercentile(0.5), getPercentile(0.95),
+        getPercentile(0.99), maxMicros.get() / 1000.0);
+  }
+
+  /**
+   * @param fraction  The percentile as a fraction, i.e. 0.99
+   * @return The latency in milliseconds below which the fraction of the latencies fall
+   */
+  public double getPercentile(double fraction) {
+    long total = 0;
+    long[] counts = new long[buckets.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0.0;
+    }
+    long rank = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(getMidpoint(i), maxMicros.get()) / 1000.0;
+      }
+    }
+    return maxMicros.get() / 1000.0;
+  }
+
+  private static int getBucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return ((exp - 1) << SUB_BITS) + sub;
+  }
+
+  private static long getMidpoint(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = (bucket >> SUB_BITS) + 1;
+    long width = 1L << (exp - SUB_BITS);
+    long lower = (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) * width;
+    return lower + width / 2;
+  }
+}
@@ -0,0 +1,63 @@
+package com.proquest.magnolia.statemgr.common;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The state of a {@link LatencyHistogram} at one point in time; exposed over JMX as composite data.
+ * Latencies are in milliseconds.
+ */
+public class LatencySnapshot {
+
+  private final long count;
+  private final long errors;
+  private final double mean;
+  private final double p50;
+  private final double p95;
+  private final double p99;
+  private final double max;
+
+  @ConstructorProperties({"count", "errors", "mean", "p50", "p95", "p99", "max"})
+  public LatencySnapshot(long count, long errors, double mean, double p50, double p95, double p99, double max) {
+    this.count = count;
+    this.errors = errors;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p95 = p95;
+    this.p99 = p99;
+    this.max = max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public double getP50() {
+    return p50;
+  }
+
+  public double getP95() {
+    return p95;
+  }
+
+  public double getP99() {
+    return p99;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{count=[%d], errors=[%d], meanMs=[%.3f], p50Ms=[%.3f], p95Ms=[%.3f], p99Ms=[%.3f], maxMs=[%.3f]}",
+        count, errors, mean, p50, p95, p99, max);
+  }
+}
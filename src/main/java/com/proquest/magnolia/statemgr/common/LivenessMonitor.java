@@ -0,0 +1,213 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects stages whose runner has died. A running stage has an ephemeral <code>/Owner</code>
+ * node, created by its runner before the stage goes IN_PROGRESS and deleted once it has finished,
+ * so the node of a dead runner goes away with its ZooKeeper session. A stage that is IN_PROGRESS
+ * without an owner for longer than the grace period is orphaned, and the action set by the
+ * <code>statemgr.orphan.action</code> system property is taken:
+ * <ul>
+ *   <li>error - the stage is set to ERROR (the default)</li>
+ *   <li>requeue - the stage is set back to IDLE, so it is run again</li>
+ *   <li>none - the orphan is only logged</li>
+ * </ul>
+ * A dead runner is therefore noticed within the session timeout
+ * (<code>statemgr.zk.sessionTimeout</code>) plus the grace period (<code>statemgr.orphan.grace</code>),
+ * which gives a client whose session merely expired the time to register again. The state is only
+ * changed if the stage is still IN_PROGRESS, so several monitors may watch the same stages.
+ */
+public class LivenessMonitor implements StateMirror.Listener, Watcher, DataCallback, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(LivenessMonitor.class.getName());
+
+  private static final long GRACE = Long.getLong("statemgr.orphan.grace", 5000L);
+
+  public enum Action { Error, Requeue, None }
+
+  private ZKClientBase zk;
+  private StateMirror mirror;
+  private StageStore store;
+  private Action action;
+  private ConcurrentMap<String,String> owners = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Constructor; watches the owners of the stages of the mirror while they are IN_PROGRESS.
+   * @param zk      ZKClient reference
+   * @param mirror  The mirror of the stages
+   */
+  public LivenessMonitor(ZKClientBase zk, StateMirror mirror) {
+    this.zk = zk;
+    this.mirror = mirror;
+    this.store = new StageStore(zk);
+    this.action = getConfiguredAction();
+    mirror.addListener(this);
+  }
+
+  /**
+   * @return  The action set by the <code>statemgr.orphan.action</code> system property
+   */
+  public static Action getConfiguredAction() {
+    String value = System.getProperty("statemgr.orphan.action", "error");
+    for (Action a : Action.values()) {
+      if (a.name().equalsIgnoreCase(value)) {
+        return a;
+      }
+    }
+    logger.warn(String.format("Unknown orphan action, using error {action=[%s]}", value));
+    return Action.Error;
+  }
+
+  /**
+   * Starts watching the owner of a stage when it goes IN_PROGRESS, and stops once it leaves it.
+   */
+  public void nodeChanged(String stage, String subNode, StateMirror.NodeValue value) {
+    if (!subNode.equals(NODE_STATE) && !subNode.equals(NODE_RECORD)) {
+      return;
+    }
+    String ownerNode = stage + NODE_OWNER;
+    if (STATE_INPROGRESS.equals(mirror.getData(stage, NODE_STATE))) {
+      if (owners.putIfAbsent(stage, "") == null) {
+        zk.addWatch(ownerNode, this);
+        watchOwner(stage);
+      }
+    } else if (owners.remove(stage) != null) {
+      zk.removeWatch(ownerNode, this);
+    }
+  }
+
+  private void watchOwner(String stage) {
+    zk.getZookeeper().getData(stage + NODE_OWNER, true, this, stage);
+  }
+
+  /**
+   * Re-reads the owner node of a watched stage when it changes or goes away.
+   * @param event The event
+   */
+  public void process(WatchedEvent event) {
+    String path = event.getPath();
+    if (path != null && path.endsWith(NODE_OWNER)) {
+      String stage = path.substring(0, path.length() - NODE_OWNER.length());
+      if (owners.containsKey(stage)) {
+        watchOwner(stage);
+      }
+    }
+  }
+
+  /**
+   * Handles the owner node data; a missing owner is checked again after the grace period.
+   * The owner of a stage that finishes normally is deleted too, usually before the mirror
+   * sees the new state, so a missing owner only becomes an orphan once {@link #check} says so.
+   */
+  public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+    final String stage = (String) ctx;
+    if (!owners.containsKey(stage)) {
+      return;
+    }
+    switch (KeeperException.Code.get(rc)) {
+      case OK:
+        owners.replace(stage, ZKClientBase.decode(data));
+        break;
+      case NONODE:
+        logger.debug(String.format("Running stage has no owner {node=[%s], owner=[%s], graceMs=[%d]}",
+            stage, owners.get(stage), GRACE));
+        scheduleCheck(stage, GRACE);
+        break;
+      case SESSIONEXPIRED:
+        // The watches are restored once the session has been re-established
+        break;
+      default:
+        logger.info(String.format("Retry errors {node=[%s]}", path));
+        zk.getScheduler().schedule(new Runnable() {
+          public void run() {
+            if (owners.containsKey(stage)) {
+              watchOwner(stage);
+            }
+          }
+        }, zk.getRetryDelay(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void scheduleCheck(final String stage, long delay) {
+    zk.getScheduler().schedule(new Runnable() {
+      public void run() {
+        zk.getWorkerPool().execute(new Runnable() {
+          public void run() {
+            check(stage);
+          }
+        });
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return  The host, pid and start time of the owner, i.e. "on host1 (pid 123, started ...) "
+   */
+  private static String describeOwner(String owner) {
+    if (owner == null || owner.length() == 0) {
+      return "";
+    }
+    try {
+      JSONObject obj = new JSONObject(owner);
+      return String.format("on %s (pid %s, started %s) ", obj.optString("host"), obj.optString("pid"), obj.optString("start"));
+    } catch (JSONException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Takes the orphan action if the stage is still IN_PROGRESS and its owner has not come back.
+   */
+  private void check(final String stage) {
+    if (!owners.containsKey(stage)) {
+      return;
+    }
+    try {
+      if (zk.getZookeeper().exists(stage + NODE_OWNER, true) != null) {
+        watchOwner(stage);
+        return;
+      }
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to check the owner, checking again {node=[%s]}", stage), e);
+      scheduleCheck(stage, zk.getRetryDelay());
+      return;
+    }
+
+    String info = "Orphaned, the runner " + describeOwner(owners.get(stage)) + "is gone";
+    if (action == Action.None) {
+      logger.error(String.format("[%s] %s", stage, info));
+      return;
+    }
+    Map<String,String> fields = new LinkedHashMap<String, String>();
+    fields.put(NODE_STATE_INFO, info);
+    if (action == Action.Error) {
+      fields.put(NODE_TIME_END, new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date()));
+      fields.put(NODE_STATE, STATE_ERROR);
+    } else {
+      fields.put(NODE_STATE, STATE_IDLE);
+    }
+    try {
+      if (ZKClientBase.waitFor(store.updateIf(stage, STATE_INPROGRESS, fields))) {
+        logger.error(String.format("[%s] %s, set to %s", stage, info, fields.get(NODE_STATE)));
+      }
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to mark the orphaned stage {node=[%s]}", stage), e);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * All of the fields of a stage held in a single node as compact JSON, i.e.
+ * <code>{"state":"SUCCESS","start":"...","end":"..."}</code>. Fields are addressed by the
+ * legacy sub-node they replace (NODE_STATE, NODE_STATE_INFO, ...) so callers do not depend
+ * on the format. Empty fields are left out, and fields this version does not know about are
+ * kept when the record is written back.
+ */
+public class StageRecord implements ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(StageRecord.class.getName());
+
+  private static final Map<String,String> KEYS = new LinkedHashMap<String, String>();
+  static {
+    KEYS.put(NODE_STATE, "state");
+    KEYS.put(NODE_STATE_INFO, "info");
+    KEYS.put(NODE_DESCRIPTION, "desc");
+    KEYS.put(NODE_TIME_START, "start");
+    KEYS.put(NODE_TIME_END, "end");
+    KEYS.put(NODE_FINGERPRINT, "fingerprint");
+    KEYS.put(NODE_DURATION, "duration");
+  }
+
+  private Map<String,String> values = new LinkedHashMap<String, String>();
+  private int version = -1;
+
+  /**
+   * Parses the record. Invalid data is logged and treated as an empty record.
+   * @param json    The node data
+   * @param version The node version, or -1 if not known
+   * @return The record
+   */
+  public static StageRecord parse(String json, int version) {
+    StageRecord record = new StageRecord();
+    record.version = version;
+    if (json != null && json.length() > 0) {
+      try {
+        JSONObject obj = new JSONObject(json);
+        for (Iterator<?> it = obj.keys(); it.hasNext();) {
+          String key = (String) it.next();
+          record.values.put(key, obj.optString(key));
+        }
+      } catch (JSONException e) {
+        logger.warn(String.format("Invalid stage record {data=[%s]}", json), e);
+      }
+    }
+    return record;
+  }
+
+  /**
+   * @return  The fields that a record holds, as legacy sub-nodes
+   */
+  public static Iterable<String> getFields() {
+    return KEYS.keySet();
+  }
+
+  /**
+   * @param subNode The legacy sub-node of the field, i.e. NODE_STATE
+   * @return The field value, or an empty string if it is not set
+   */
+  public String get(String subNode) {
+    String value = values.get(getKey(subNode));
+    return (value != null) ? value : "";
+  }
+
+  /**
+   * @param subNode The legacy sub-node of the field, i.e. NODE_STATE
+   * @param value   The field value; an empty value removes the field
+   * @return true if the value changed
+   */
+  public boolean set(String subNode, String value) {
+    String key = getKey(subNode);
+    if (value == null || value.length() == 0) {
+      return values.remove(key) != null;
+    }
+    return !value.equals(values.put(key, value));
+  }
+
+  /**
+   * @return  The version of the node the record was read from, or -1 if not known
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  public String toJson() {
+    return new JSONObject(values).toString();
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+  private static String getKey(String subNode) {
+    String key = KEYS.get(subNode);
+    if (key == null) {
+      throw new IllegalArgumentException("Not a stage record field: " + subNode);
+    }
+    return key;
+  }
+}
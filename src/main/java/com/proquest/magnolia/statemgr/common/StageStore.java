@@ -0,0 +1,329 @@
+package com.proquest.magnolia.statemgr.common;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads and writes the fields of stages in the format selected by the
+ * <code>statemgr.record.mode</code> system property:
+ * <ul>
+ *   <li>legacy - one node per field (the default)</li>
+ *   <li>compat - a single record node, plus the legacy nodes for readers that still use them</li>
+ *   <li>record - a single record node</li>
+ * </ul>
+ * Records are updated with a version check so concurrent writers never lose each other's
+ * fields, and a reader always sees the fields of one write rather than a torn combination.
+ */
+public class StageStore implements ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(StageStore.class.getName());
+
+  public enum Mode { Legacy, Compat, Record }
+
+  private ZKClientBase zk;
+  private Mode mode;
+
+  /**
+   * Constructor; uses the configured mode.
+   * @param zk  ZKClient reference
+   */
+  public StageStore(ZKClientBase zk) {
+    this(zk, getConfiguredMode());
+  }
+
+  /**
+   * Constructor.
+   * @param zk    ZKClient reference
+   * @param mode  The storage mode
+   */
+  public StageStore(ZKClientBase zk, Mode mode) {
+    this.zk = zk;
+    this.mode = mode;
+  }
+
+  /**
+   * @return  The mode set by the <code>statemgr.record.mode</code> system property
+   */
+  public static Mode getConfiguredMode() {
+    String value = System.getProperty("statemgr.record.mode", "legacy");
+    for (Mode m : Mode.values()) {
+      if (m.name().equalsIgnoreCase(value)) {
+        return m;
+      }
+    }
+    logger.warn(String.format("Unknown record mode, using legacy {mode=[%s]}", value));
+    return Mode.Legacy;
+  }
+
+  public ZKClientBase getClient() {
+    return zk;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * @return  true if stages are read from their record node
+   */
+  public boolean usesRecord() {
+    return mode != Mode.Legacy;
+  }
+
+  /**
+   * Returns the node that holds a field of the stage, i.e. the node to watch for changes of the field.
+   * @param stage   The stage node
+   * @param subNode The legacy sub-node of the field
+   * @return The record node or the legacy sub-node
+   */
+  public String getNode(String stage, String subNode) {
+    return usesRecord() ? stage + NODE_RECORD : stage + subNode;
+  }
+
+  /**
+   * Extracts a field from the data of a node returned by {@link #getNode(String, String)}.
+   * @param path    The node path
+   * @param data    The node data
+   * @param subNode The legacy sub-node of the field
+   * @return The field value
+   */
+  public String getField(String path, String data, String subNode) {
+    return path.endsWith(NODE_RECORD) ? StageRecord.parse(data, -1).get(subNode) : data;
+  }
+
+  /**
+   * Writes a single field of the stage.
+   * @see #update(String, Map)
+   */
+  public ListenableFuture<List<Stat>> update(String stage, String subNode, String value) {
+    Map<String,String> fields = new LinkedHashMap<String, String>();
+    fields.put(subNode, value);
+    return update(stage, fields);
+  }
+
+  /**
+   * Asynchronously writes the fields of the stage. Legacy nodes are written in iteration
+   * order; record fields are merged into the record in a single versioned write.
+   * @param stage   The stage node
+   * @param fields  Map of legacy sub-node to value
+   * @return A future that completes once every write has completed
+   */
+  public ListenableFuture<List<Stat>> update(String stage, final Map<String,String> fields) {
+    List<ListenableFuture<Stat>> futures = new ArrayList<ListenableFuture<Stat>>();
+    if (usesRecord()) {
+      futures.add(zk.updateDataAsync(stage + NODE_RECORD, new ZKClientBase.DataUpdate() {
+        public byte[] apply(byte[] data) {
+          StageRecord record = StageRecord.parse(ZKClientBase.decode(data), -1);
+          boolean changed = (data == null);
+          for (Map.Entry<String,String> field : fields.entrySet()) {
+            changed |= record.set(field.getKey(), field.getValue());
+          }
+          return changed ? ZKClientBase.encode(record.toJson()) : null;
+        }
+      }));
+    }
+    if (mode != Mode.Record) {
+      for (Map.Entry<String,String> field : fields.entrySet()) {
+        futures.add(zk.setDataAsync(stage + field.getKey(), field.getValue()));
+      }
+    }
+    return Futures.allAsList(futures);
+  }
+
+  /**
+   * Asynchronously writes the fields of the stage, including its new state, but only if the
+   * stage is still in the expected state. Records are checked and written in one versioned
+   * update, so neither the state nor the other fields written by someone else in the meantime
+   * are ever overwritten. Legacy nodes are written under the stage's update lock, so only one
+   * conditional writer checks and writes the stage at a time: the state is checked, the other
+   * nodes are written and then the state is written with a version check, so a reader that
+   * sees the new state also sees the other fields. The future completes once every write has.
+   * @param stage         The stage node
+   * @param expectedState The state the stage must be in
+   * @param fields        Map of legacy sub-node to value; must hold NODE_STATE
+   * @return A future holding true if the fields were written
+   */
+  public ListenableFuture<Boolean> updateIf(final String stage, final String expectedState,
+                                            final Map<String,String> fields) {
+    final SettableFuture<Boolean> result = SettableFuture.create();
+    final AtomicBoolean applied = new AtomicBoolean(false);
+    if (usesRecord()) {
+      final ListenableFuture<Stat> cas = zk.updateDataAsync(stage + NODE_RECORD, new ZKClientBase.DataUpdate() {
+        public byte[] apply(byte[] data) {
+          StageRecord record = StageRecord.parse(ZKClientBase.decode(data), -1);
+          applied.set(expectedState.equals(record.get(NODE_STATE)));
+          if (!applied.get()) {
+            return null;
+          }
+          for (Map.Entry<String,String> field : fields.entrySet()) {
+            record.set(field.getKey(), field.getValue());
+          }
+          return ZKClientBase.encode(record.toJson());
+        }
+      });
+      then(cas, result, new Step() {
+        public void run() {
+          if (applied.get() && mode == Mode.Compat) {
+            // The record is authoritative; the legacy nodes follow it
+            then(writeLegacy(stage, fields), result, new Step() {
+              public void run() {
+                result.set(true);
+              }
+            });
+          } else {
+            result.set(applied.get());
+          }
+        }
+      });
+    } else {
+      // The lock is waited for, so the update runs on the worker pool
+      zk.getWorkerPool().execute(new Runnable() {
+        public void run() {
+          try {
+            result.set(updateLegacyIf(stage, expectedState, fields));
+          } catch (Exception e) {
+            result.setException(e);
+          }
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Writes the legacy nodes of the fields if the stage is in the expected state, holding the
+   * stage's update lock. Without it two writers could both see the expected state and both
+   * write their fields, leaving the loser's fields on the winner's state.
+   */
+  private boolean updateLegacyIf(String stage, final String expectedState, final Map<String,String> fields)
+      throws KeeperException, InterruptedException {
+    String lock = stage + NODE_UPDATE_LOCK;
+    try {
+      while (!zk.createLock(lock)) {
+        // Another writer is updating the stage; the state it leaves decides whether we may
+        Thread.sleep(zk.getRetryDelay());
+      }
+    } catch (KeeperException.NoNodeException e) {
+      return false;
+    }
+    try {
+      if (!expectedState.equals(ZKClientBase.waitFor(zk.getDataAsync(stage + NODE_STATE)))) {
+        return false;
+      }
+      ZKClientBase.waitFor(update(stage, getOtherFields(fields)));
+      // Still checked, since unconditional writers do not take the lock
+      final AtomicBoolean applied = new AtomicBoolean(false);
+      ZKClientBase.waitFor(zk.updateDataAsync(stage + NODE_STATE, new ZKClientBase.DataUpdate() {
+        public byte[] apply(byte[] data) {
+          applied.set(expectedState.equals(ZKClientBase.decode(data)));
+          return applied.get() ? ZKClientBase.encode(fields.get(NODE_STATE)) : null;
+        }
+      }));
+      return applied.get();
+    } finally {
+      zk.delete(lock);
+    }
+  }
+
+  /**
+   * Writes the legacy nodes of the fields, the state once the others have been written.
+   */
+  private ListenableFuture<List<Stat>> writeLegacy(final String stage, final Map<String,String> fields) {
+    final SettableFuture<List<Stat>> written = SettableFuture.create();
+    final ListenableFuture<List<Stat>> others = zk.setDataAsync(prefix(stage, getOtherFields(fields)));
+    others.addListener(new Runnable() {
+      public void run() {
+        try {
+          ZKClientBase.waitFor(others);
+          written.set(ZKClientBase.waitFor(zk.setDataAsync(Collections.singletonMap(stage + NODE_STATE, fields.get(NODE_STATE)))));
+        } catch (Exception e) {
+          written.setException(e);
+        }
+      }
+    }, zk.getWorkerPool());
+    return written;
+  }
+
+  private static Map<String,String> getOtherFields(Map<String,String> fields) {
+    Map<String,String> others = new LinkedHashMap<String, String>(fields);
+    others.remove(NODE_STATE);
+    return others;
+  }
+
+  private static Map<String,String> prefix(String stage, Map<String,String> fields) {
+    Map<String,String> nodes = new LinkedHashMap<String, String>();
+    for (Map.Entry<String,String> field : fields.entrySet()) {
+      nodes.put(stage + field.getKey(), field.getValue());
+    }
+    return nodes;
+  }
+
+  /**
+   * A step of a chain of asynchronous writes.
+   */
+  private interface Step {
+    void run() throws Exception;
+  }
+
+  /**
+   * Runs the step on the worker pool once the future has completed, or fails the result
+   * if the future or the step fails.
+   */
+  private void then(final ListenableFuture<?> future, final SettableFuture<Boolean> result, final Step step) {
+    future.addListener(new Runnable() {
+      public void run() {
+        try {
+          ZKClientBase.waitFor(future);
+          step.run();
+        } catch (Exception e) {
+          result.setException(e);
+        }
+      }
+    }, zk.getWorkerPool());
+  }
+
+  /**
+   * Reads the fields of the stages as one pipelined batch.
+   * @param stages  The stage nodes
+   * @return The record of each stage, in the same order
+   */
+  public List<StageRecord> read(List<String> stages) throws KeeperException, InterruptedException {
+    List<String> paths = new ArrayList<String>();
+    for (String stage : stages) {
+      if (usesRecord()) {
+        paths.add(stage + NODE_RECORD);
+      } else {
+        for (String subNode : StageRecord.getFields()) {
+          paths.add(stage + subNode);
+        }
+      }
+    }
+    List<String> data = ZKClientBase.waitFor(zk.getDataAsync(paths));
+
+    List<StageRecord> records = new ArrayList<StageRecord>(stages.size());
+    int i = 0;
+    for (int s = 0; s < stages.size(); s++) {
+      if (usesRecord()) {
+        records.add(StageRecord.parse(data.get(i++), -1));
+      } else {
+        StageRecord record = new StageRecord();
+        for (String subNode : StageRecord.getFields()) {
+          record.set(subNode, data.get(i++));
+        }
+        records.add(record);
+      }
+    }
+    return records;
+  }
+}
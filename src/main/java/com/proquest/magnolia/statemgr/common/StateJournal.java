@@ -0,0 +1,607 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A local append-only journal of the node values a client has observed and the writes it has
+ * issued. Records are appended to one of two memory-mapped segments, so appending is a memory
+ * copy that survives the process dying. When the segment is full, and periodically, appending
+ * moves to the other segment and the latest value of every node, copied at that point, is
+ * written to a snapshot on a thread of the journal; the full segment is cleared once the
+ * snapshot is in place. Records are only dropped, and logged, if the other segment is full as
+ * well before its snapshot is done; the view still takes them, so only a crash before the next
+ * snapshot loses them. On restart the snapshot and both segments are replayed into a view of
+ * the last known value and version of every node, from which the unchanged nodes are served
+ * without reading them from ZK again; the newest value of a node wins, so the order of the
+ * segments does not matter.
+ * <p>
+ * Each record is <code>length, crc32, type, time, mzxid, version, path, data</code>; a zero
+ * length ends the segment. Running the class replays a journal for post-mortems:
+ * <code>StateJournal &lt;journal file&gt; [path prefix]</code>.
+ */
+public class StateJournal {
+
+  private static final Logger logger = Logger.getLogger(StateJournal.class.getName());
+
+  /**
+   * A value read from ZK.
+   */
+  public static final byte OBSERVED = 'O';
+
+  /**
+   * A value written by this client.
+   */
+  public static final byte ISSUED = 'I';
+
+  /**
+   * The directory of the journals, set by the <code>statemgr.journal.dir</code> system property;
+   * nothing is journaled when it is not set.
+   */
+  public static final String JOURNAL_DIR = System.getProperty("statemgr.journal.dir");
+
+  private static final int JOURNAL_SIZE = Integer.getInteger("statemgr.journal.size", 4 * 1024 * 1024);
+  private static final int SNAPSHOT_MAGIC = 0x534d534e;
+  private static final int HEADER_SIZE = 8;
+
+  private final File journalFile;
+  private final File spareFile;
+  private final File snapshotFile;
+  private RandomAccessFile file;
+  private RandomAccessFile spareRaf;
+  private FileLock lock;
+  private MappedByteBuffer map;
+  private MappedByteBuffer spare;
+  private boolean spareSealed = false;
+  private boolean snapshotting = false;
+  private ExecutorService snapshotter;
+  private final ConcurrentMap<String,Entry> view = new ConcurrentHashMap<String, Entry>();
+  private final CRC32 crc = new CRC32();
+  private long records = 0;
+  private long dropped = 0;
+
+  /**
+   * The last known value of a node.
+   */
+  public static class Entry {
+    private final String data;
+    private final long mzxid;
+    private final int version;
+
+    Entry(String data, long mzxid, int version) {
+      this.data = data;
+      this.mzxid = mzxid;
+      this.version = version;
+    }
+
+    public String getData() {
+      return data;
+    }
+
+    /**
+     * @return  The zxid of the last modification, or 0 if not known
+     */
+    public long getMzxid() {
+      return mzxid;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+  }
+
+  private StateJournal(File dir, String name) {
+    this.journalFile = new File(dir, name + ".journal");
+    this.spareFile = getSpareFile(journalFile);
+    this.snapshotFile = new File(dir, name + ".snapshot");
+  }
+
+  /**
+   * Opens the journal of the specified name and replays it.
+   * @param name  The journal name, unique to the client on this host
+   * @return The journal, or null if journaling is off or the journal is in use or unreadable
+   */
+  public static StateJournal open(String name) {
+    if (JOURNAL_DIR == null) {
+      return null;
+    }
+    File dir = new File(JOURNAL_DIR);
+    StateJournal journal = new StateJournal(dir, name);
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create the directory " + dir);
+      }
+      if (!journal.lock()) {
+        logger.warn(String.format("The journal is in use, running without it {file=[%s]}", journal.journalFile));
+        journal.close();
+        return null;
+      }
+      journal.load();
+      logger.info(String.format("Opened the journal {file=[%s], nodes=[%d], records=[%d]}",
+          journal.journalFile, journal.view.size(), journal.records));
+      return journal;
+    } catch (IOException e) {
+      logger.warn(String.format("Unable to open the journal, running without it {file=[%s]}", journal.journalFile), e);
+      journal.close();
+      return null;
+    }
+  }
+
+  private boolean lock() throws IOException {
+    file = new RandomAccessFile(journalFile, "rw");
+    try {
+      lock = file.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    return lock != null;
+  }
+
+  private static File getSpareFile(File journal) {
+    return new File(journal.getPath() + ".1");
+  }
+
+  /**
+   * Rebuilds the view from the snapshot and both segments, and positions the segment to append
+   * to after its last record. If a snapshot was cut short both segments hold records, and the
+   * snapshot is written again.
+   */
+  private synchronized void load() throws IOException {
+    if (snapshotFile.exists()) {
+      try {
+        readSnapshot(snapshotFile, view);
+      } catch (IOException e) {
+        // Only the versions of the nodes are lost; they are read from ZK again
+        logger.warn(String.format("Unable to read the journal snapshot, ignoring it {file=[%s]}", snapshotFile), e);
+        view.clear();
+      }
+    }
+    spareRaf = new RandomAccessFile(spareFile, "rw");
+    map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+    spare = spareRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+    records = replay(map);
+    long spareRecords = replay(spare);
+    snapshotter = Executors.newSingleThreadExecutor(ThreadPools.newDaemonThreadFactory("journal-snapshot"));
+    if (records == 0) {
+      swap();
+      records = spareRecords;
+    } else if (spareRecords > 0) {
+      spareSealed = true;
+      startSnapshot();
+    }
+  }
+
+  private long replay(MappedByteBuffer segment) {
+    long count = 0;
+    Record record = new Record();
+    while (record.read(segment, crc)) {
+      count++;
+      if (record.mzxid != 0) {
+        apply(record.path, new Entry(record.data, record.mzxid, record.version));
+      }
+    }
+    return count;
+  }
+
+  private void swap() {
+    MappedByteBuffer m = map;
+    map = spare;
+    spare = m;
+  }
+
+  /**
+   * @return  The last known value of the node, or null if it is not known
+   */
+  public Entry get(String path) {
+    return view.get(path);
+  }
+
+  /**
+   * Appends a record of the node value.
+   * @param type  OBSERVED or ISSUED
+   * @param path  The node path
+   * @param data  The node data
+   * @param stat  The node stat after the read or write, or null if not known
+   */
+  public synchronized void record(byte type, String path, byte[] data, Stat stat) {
+    if (map == null) {
+      return;
+    }
+    if (data == null) {
+      data = new byte[0];
+    }
+    long mzxid = (stat != null) ? stat.getMzxid() : 0;
+    int version = (stat != null) ? stat.getVersion() : -1;
+    if (mzxid != 0) {
+      Entry prev = view.get(path);
+      if (prev != null && prev.getMzxid() >= mzxid) {
+        // Already journaled, i.e. our own write read back
+        return;
+      }
+    }
+    byte[] payload = Record.encode(type, System.currentTimeMillis(), mzxid, version, path, data);
+    if (HEADER_SIZE + payload.length + 4 > JOURNAL_SIZE) {
+      logger.warn(String.format("The node data is too large to journal {node=[%s], bytes=[%d]}", path, data.length));
+      return;
+    }
+    if (map.remaining() < HEADER_SIZE + payload.length + 4 && !switchSegments()) {
+      if (dropped++ == 0) {
+        logger.warn(String.format("The journal is full and its snapshot is not done, dropping records until it is {file=[%s], node=[%s]}",
+            journalFile, path));
+      }
+      // Still kept in the view, so the next snapshot has it
+      if (mzxid != 0) {
+        apply(path, new Entry(ZKClientBase.decode(data), mzxid, version));
+      }
+      return;
+    }
+    crc.reset();
+    crc.update(payload, 0, payload.length);
+    map.putInt(payload.length);
+    map.putInt((int) crc.getValue());
+    map.put(payload);
+    // Terminates the journal, hiding whatever is left of the records before the last snapshot
+    map.putInt(map.position(), 0);
+    records++;
+    if (mzxid != 0) {
+      apply(path, new Entry(ZKClientBase.decode(data), mzxid, version));
+    }
+  }
+
+  /**
+   * Keeps the entry unless a newer one is already known. Only values of a known version are kept.
+   */
+  private void apply(String path, Entry entry) {
+    Entry prev = view.get(path);
+    if (prev == null || prev.getMzxid() <= entry.getMzxid()) {
+      view.put(path, entry);
+    }
+  }
+
+  /**
+   * Moves appending to the other segment and snapshots the view in the background, unless
+   * the journal is empty. Returns without waiting for the snapshot.
+   */
+  public synchronized void snapshot() {
+    if (map == null || records == 0) {
+      return;
+    }
+    switchSegments();
+  }
+
+  /**
+   * Moves appending to the other segment, if its records are in a snapshot, and snapshots
+   * the view as of now, which holds every record of the segment being left.
+   * @return false if the other segment is still waiting for its snapshot
+   */
+  private boolean switchSegments() {
+    if (spareSealed) {
+      if (!snapshotting) {
+        // The last snapshot failed; try it again
+        startSnapshot();
+      }
+      return false;
+    }
+    swap();
+    spareSealed = true;
+    records = 0;
+    startSnapshot();
+    return true;
+  }
+
+  /**
+   * Writes a copy of the view to the snapshot on the snapshot thread, and then clears the
+   * sealed segment. Called holding the lock; the copy is taken with it, the file is written without it.
+   */
+  private void startSnapshot() {
+    snapshotting = true;
+    final Map<String,Entry> copy = new HashMap<String, Entry>(view);
+    final MappedByteBuffer sealed = spare;
+    snapshotter.execute(new Runnable() {
+      public void run() {
+        boolean cleared = false;
+        try {
+          if (writeSnapshot(copy)) {
+            // Nothing appends to a sealed segment, so it is cleared without the lock
+            sealed.putInt(0, 0);
+            sealed.force();
+            cleared = true;
+          }
+        } catch (RuntimeException e) {
+          logger.warn(String.format("Unable to clear the journal segment {file=[%s]}", journalFile), e);
+        }
+        synchronized (StateJournal.this) {
+          snapshotting = false;
+          if (cleared && spare == sealed) {
+            sealed.clear();
+            spareSealed = false;
+            if (dropped > 0) {
+              logger.warn(String.format("The journal snapshot is done, journaling again {file=[%s], dropped=[%d]}", journalFile, dropped));
+              dropped = 0;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the view to the snapshot. The snapshot is written to a temporary file and renamed,
+   * so a crash leaves either snapshot in place along with the segments.
+   * @return false if it could not be written
+   */
+  private boolean writeSnapshot(Map<String,Entry> entries) {
+    File tmp = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      FileOutputStream fos = new FileOutputStream(tmp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+      try {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(entries.size());
+        for (Map.Entry<String,Entry> e : entries.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeLong(e.getValue().getMzxid());
+          out.writeInt(e.getValue().getVersion());
+          byte[] data = ZKClientBase.encode(e.getValue().getData());
+          out.writeInt(data.length);
+          out.write(data);
+        }
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(snapshotFile) && !(snapshotFile.delete() && tmp.renameTo(snapshotFile))) {
+        throw new IOException("Unable to replace " + snapshotFile);
+      }
+    } catch (IOException e) {
+      // The segments are kept, so nothing is lost; it is retried once the journal is full again
+      logger.warn(String.format("Unable to write the journal snapshot {file=[%s]}", snapshotFile), e);
+      return false;
+    }
+    logger.debug(String.format("Wrote the journal snapshot {file=[%s], nodes=[%d]}", snapshotFile, entries.size()));
+    return true;
+  }
+
+  /**
+   * Waits for the snapshot in progress, snapshots the journal and releases it.
+   */
+  public void close() {
+    ExecutorService s = snapshotter;
+    if (s != null) {
+      s.shutdown();
+      try {
+        s.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      try {
+        if (map != null) {
+          if ((records > 0 || spareSealed) && writeSnapshot(new HashMap<String, Entry>(view))) {
+            map.putInt(0, 0);
+            spare.putInt(0, 0);
+          }
+          map.force();
+          spare.force();
+          map = null;
+          spare = null;
+        }
+        if (lock != null) {
+          lock.release();
+          lock = null;
+        }
+        if (file != null) {
+          file.close();
+          file = null;
+        }
+        if (spareRaf != null) {
+          spareRaf.close();
+          spareRaf = null;
+        }
+      } catch (IOException e) {
+        logger.warn(String.format("Unable to close the journal {file=[%s]}", journalFile), e);
+      }
+    }
+  }
+
+  /**
+   * Reads a snapshot into the view.
+   */
+  private static long readSnapshot(File snapshot, Map<String,Entry> view) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a journal snapshot: " + snapshot);
+      }
+      long time = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        long mzxid = in.readLong();
+        int version = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        view.put(path, new Entry(ZKClientBase.decode(data), mzxid, version));
+      }
+      return time;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A journal record being read.
+   */
+  private static class Record {
+    byte type;
+    long time;
+    long mzxid;
+    int version;
+    String path;
+    String data;
+
+    static byte[] encode(byte type, long time, long mzxid, int version, String path, byte[] data) {
+      byte[] pathBytes = ZKClientBase.encode(path);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(29 + pathBytes.length + data.length);
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeByte(type);
+        out.writeLong(time);
+        out.writeLong(mzxid);
+        out.writeInt(version);
+        out.writeInt(pathBytes.length);
+        out.write(pathBytes);
+        out.writeInt(data.length);
+        out.write(data);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the next record; stops at the end of the journal or at a torn or corrupt record.
+     * @return false if there are no more records
+     */
+    boolean read(ByteBuffer buf, CRC32 crc) {
+      int start = buf.position();
+      try {
+        int length = buf.getInt();
+        int checksum = buf.getInt();
+        if (length <= 0 || length > buf.remaining()) {
+          buf.position(start);
+          return false;
+        }
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          logger.warn(String.format("Corrupt journal record, ignoring the rest of the journal {offset=[%d]}", start));
+          buf.position(start);
+          return false;
+        }
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        type = in.get();
+        time = in.getLong();
+        mzxid = in.getLong();
+        version = in.getInt();
+        path = readString(in);
+        data = readString(in);
+        return true;
+      } catch (BufferUnderflowException e) {
+        buf.position(start);
+        return false;
+      }
+    }
+
+    private static String readString(ByteBuffer in) {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      return ZKClientBase.decode(bytes);
+    }
+  }
+
+  /**
+   * Replays a journal: prints the snapshot, if any, and then every record.
+   * @param args
+   * <code>
+   *          args[0] - The journal file, i.e. ./journal/master.journal
+   *          args[1] - Optional path prefix; only the nodes under it are printed
+   * </code>
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: StateJournal <journal file> [path prefix]");
+      System.exit(1);
+    }
+    File journal = new File(args[0]);
+    String prefix = (args.length > 1) ? args[1] : "";
+    SimpleDateFormat sdf = new SimpleDateFormat(ZKConstants.TIMESTAMP_FORMAT);
+
+    String name = journal.getName().replaceFirst("\\.journal$", "");
+    File snapshot = new File(journal.getParentFile(), name + ".snapshot");
+    if (snapshot.exists()) {
+      Map<String,Entry> entries = new TreeMap<String, Entry>();
+      long time = readSnapshot(snapshot, entries);
+      System.out.println(String.format("# Snapshot of %s, %d nodes", sdf.format(new Date(time)), entries.size()));
+      for (Map.Entry<String,Entry> e : entries.entrySet()) {
+        if (e.getKey().startsWith(prefix)) {
+          System.out.println(format("SNAPSHOT", e.getKey(), e.getValue().getMzxid(), e.getValue().getVersion(), e.getValue().getData()));
+        }
+      }
+    }
+
+    // The records of both segments, in the order they were appended
+    List<Record> records = new ArrayList<Record>();
+    for (File segment : new File[] {journal, getSpareFile(journal)}) {
+      if (!segment.exists()) {
+        continue;
+      }
+      RandomAccessFile raf = new RandomAccessFile(segment, "r");
+      try {
+        MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        CRC32 crc = new CRC32();
+        Record record = new Record();
+        while (record.read(map, crc)) {
+          records.add(record);
+          record = new Record();
+        }
+      } finally {
+        raf.close();
+      }
+    }
+    Collections.sort(records, new Comparator<Record>() {
+      public int compare(Record r1, Record r2) {
+        return (r1.time < r2.time) ? -1 : ((r1.time == r2.time) ? 0 : 1);
+      }
+    });
+    System.out.println("# Journal");
+    for (Record record : records) {
+      if (record.path.startsWith(prefix)) {
+        System.out.println(sdf.format(new Date(record.time)) + " "
+            + format((record.type == ISSUED) ? "ISSUED" : "OBSERVED", record.path, record.mzxid, record.version, record.data));
+      }
+    }
+  }
+
+  private static String format(String type, String path, long mzxid, int version, String data) {
+    return String.format("%-8s %s version=%d zxid=0x%x data=%s", type, path, version, mzxid, data.replace("\n", "\\n"));
+  }
+}
@@ -0,0 +1,290 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an in-memory copy of the state sub-nodes of a set of stages. Every node is read
+ * once with a watch and re-read only when the watch fires, so readers are served from
+ * memory. Each value carries the node's modification zxid; older reads never replace
+ * newer values, and a periodic refresh compares versions to catch anything missed.
+ * When the stages are stored as records only the record node of each stage is mirrored.
+ */
+public class StateMirror implements Watcher, DataCallback, StatCallback, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(StateMirror.class.getName());
+
+  /**
+   * The sub-nodes mirrored for each stage in the legacy format.
+   */
+  public static final String[] STAGE_NODES = {
+      NODE_STATE, NODE_STATE_INFO, NODE_DESCRIPTION, NODE_TIME_START, NODE_TIME_END, NODE_DURATION
+  };
+
+  private static final NodeValue MISSING = new NodeValue("", 0L, -1);
+
+  private ZKClientBase zk;
+  private StageStore store;
+  private String[] subNodes;
+  private List<String> stages = new CopyOnWriteArrayList<String>();
+  private ConcurrentMap<String,NodeValue> values = new ConcurrentHashMap<String, NodeValue>();
+  private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private ScheduledFuture<?> refreshTask = null;
+
+  /**
+   * The mirrored data of a single node.
+   */
+  public static class NodeValue {
+    private final String data;
+    private final long mzxid;
+    private final int version;
+
+    NodeValue(String data, long mzxid, int version) {
+      this.data = data;
+      this.mzxid = mzxid;
+      this.version = version;
+    }
+
+    public String getData() {
+      return data;
+    }
+
+    /**
+     * @return  The zxid of the last modification, or 0 if the node does not exist
+     */
+    public long getMzxid() {
+      return mzxid;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+  }
+
+  /**
+   * Notified when a mirrored node changes.
+   */
+  public interface Listener {
+    /**
+     * @param stage   The stage node, i.e. "/shardUpdate"
+     * @param subNode The changed sub-node, i.e. "/State"
+     * @param value   The new value
+     */
+    void nodeChanged(String stage, String subNode, NodeValue value);
+  }
+
+  /**
+   * Constructor.
+   * @param zk  ZKClient reference
+   */
+  public StateMirror(ZKClientBase zk) {
+    this.zk = zk;
+    this.store = new StageStore(zk);
+    this.subNodes = store.usesRecord() ? new String[] {NODE_RECORD} : STAGE_NODES;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts mirroring the sub-nodes of the specified stage.
+   * @param stage The stage node
+   */
+  public void addStage(String stage) {
+    if (stages.contains(stage)) {
+      return;
+    }
+    stages.add(stage);
+    for (String subNode : subNodes) {
+      String path = stage + subNode;
+      zk.addWatch(path, this);
+      read(path);
+    }
+  }
+
+  public List<String> getStages() {
+    return new ArrayList<String>(stages);
+  }
+
+  /**
+   * @return  The mirrored data of the stage's sub-node, or an empty string if it does not exist
+   */
+  public String getData(String stage, String subNode) {
+    if (store.usesRecord()) {
+      return StageRecord.parse(getValue(stage + NODE_RECORD).getData(), -1).get(subNode);
+    }
+    return getValue(stage + subNode).getData();
+  }
+
+  /**
+   * @return  The zxid of the last mirrored change of any sub-node of the stage, or 0 if none exist
+   */
+  public long getStageZxid(String stage) {
+    long zxid = 0;
+    for (String subNode : subNodes) {
+      zxid = Math.max(zxid, getValue(stage + subNode).getMzxid());
+    }
+    return zxid;
+  }
+
+  /**
+   * @return  The mirrored value of the node; never null
+   */
+  public NodeValue getValue(String path) {
+    NodeValue value = values.get(path);
+    return (value != null) ? value : MISSING;
+  }
+
+  /**
+   * Periodically checks the node versions and re-reads any node that is out of date.
+   * @param interval  The refresh interval in milliseconds
+   */
+  public synchronized void startRefresh(long interval) {
+    if (refreshTask == null) {
+      refreshTask = zk.getScheduler().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          refresh();
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Compares the version of every mirrored node with ZK and re-reads those that changed.
+   */
+  public void refresh() {
+    for (String stage : stages) {
+      for (String subNode : subNodes) {
+        zk.getZookeeper().exists(stage + subNode, false, this, null);
+      }
+    }
+  }
+
+  private void read(String path) {
+    zk.getZookeeper().getData(path, true, this, null);
+  }
+
+  /**
+   * Re-reads a node when its watch fires.
+   * @param event The event
+   */
+  public void process(WatchedEvent event) {
+    if (event.getType() != Event.EventType.None && event.getPath() != null) {
+      read(event.getPath());
+    }
+  }
+
+  /**
+   * Result of a watched read.
+   */
+  public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+    switch (KeeperException.Code.get(rc)) {
+      case OK:
+        zk.journal(StateJournal.OBSERVED, path, data, stat);
+        update(path, new NodeValue(ZKClientBase.decode(data), stat.getMzxid(), stat.getVersion()));
+        break;
+      case NONODE:
+        // Watch for the node to be created
+        update(path, MISSING);
+        zk.getZookeeper().exists(path, true, this, Boolean.TRUE);
+        break;
+      case SESSIONEXPIRED:
+        logger.warn(String.format("Session expired while mirroring {node=[%s]}", path));
+        break;
+      default:
+        logger.info(String.format("Retry errors {node=[%s]}", path));
+        read(path);
+    }
+  }
+
+  /**
+   * Result of an existence check; either the watch left on a missing node or a refresh.
+   */
+  public void processResult(int rc, String path, Object ctx, Stat stat) {
+    KeeperException.Code code = KeeperException.Code.get(rc);
+    if (code == KeeperException.Code.OK) {
+      if (ctx != null || stat.getMzxid() != getValue(path).getMzxid()) {
+        read(path);
+      }
+    } else if (code == KeeperException.Code.NONODE && ctx == null && getValue(path) != MISSING) {
+      read(path);
+    }
+  }
+
+  /**
+   * Stores the value unless a newer one is already known, and notifies the listeners.
+   */
+  private void update(String path, NodeValue value) {
+    while (true) {
+      NodeValue prev = values.get(path);
+      if (prev == null) {
+        if (values.putIfAbsent(path, value) == null) {
+          if (value == MISSING) {
+            return;
+          }
+          break;
+        }
+      } else if (value == MISSING ? prev == MISSING : prev.getMzxid() >= value.getMzxid()) {
+        return;
+      } else if (values.replace(path, prev, value)) {
+        break;
+      }
+    }
+    notifyListeners(path, value);
+  }
+
+  private void notifyListeners(final String path, final NodeValue value) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    String sub = "";
+    for (String subNode : subNodes) {
+      if (path.endsWith(subNode)) {
+        sub = subNode;
+        break;
+      }
+    }
+    final String stage = path.substring(0, path.length() - sub.length());
+    final String subNode = sub;
+    boolean queued = zk.getEventDispatcher().dispatch(path, new Runnable() {
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.nodeChanged(stage, subNode, value);
+        }
+      }
+    });
+    if (!queued) {
+      // Forget the version so the change is notified when the node is read again later
+      values.replace(path, value, forget(value));
+      zk.getScheduler().schedule(new Runnable() {
+        public void run() {
+          read(path);
+        }
+      }, zk.getRetryDelay(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return  The value with a version that any read of the same node is newer than
+   */
+  private static NodeValue forget(NodeValue value) {
+    if (value == MISSING) {
+      return new NodeValue(MISSING.getData(), MISSING.getMzxid(), MISSING.getVersion());
+    }
+    return new NodeValue(value.getData(), value.getMzxid() - 1, value.getVersion());
+  }
+}
@@ -0,0 +1,86 @@
+package com.proquest.magnolia.statemgr.common;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the thread pools shared by the client runtime.
+ */
+public class ThreadPools {
+
+  private static final Logger logger = Logger.getLogger(ThreadPools.class.getName());
+  private static final ThreadLocal<Boolean> schedulerThread = new ThreadLocal<Boolean>();
+
+  private ThreadPools() {
+  }
+
+  /**
+   * Creates a thread factory for daemon threads named prefix-1, prefix-2 and so on.
+   * @param prefix  The thread name prefix
+   * @return The thread factory
+   */
+  public static ThreadFactory newDaemonThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger(0);
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Creates the scheduler used for delayed and periodic work. Tasks run on it must not block.
+   * @param prefix  The thread name prefix
+   * @param threads The number of threads
+   * @return The scheduler
+   */
+  public static ScheduledExecutorService newScheduler(String prefix, int threads) {
+    final ThreadFactory factory = newDaemonThreadFactory(prefix);
+    return Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(final Runnable r) {
+        return factory.newThread(new Runnable() {
+          public void run() {
+            schedulerThread.set(Boolean.TRUE);
+            r.run();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * @return  true if the current thread is one of a scheduler's
+   */
+  public static boolean isSchedulerThread() {
+    return schedulerThread.get() != null;
+  }
+
+  /**
+   * Creates the pool used for blocking work such as waiting on child processes and reading their
+   * output. Threads are only created while there is work, so idle stages cost no thread. When
+   * <code>virtualThreads</code> is set and the JVM supports them, virtual threads are used instead.
+   * @param prefix          The thread name prefix
+   * @param virtualThreads  True to use virtual threads if available
+   * @return The worker pool
+   */
+  public static ExecutorService newWorkerPool(String prefix, boolean virtualThreads) {
+    if (virtualThreads) {
+      try {
+        // Looked up reflectively so the code still runs on JDKs without virtual threads
+        Object pool = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        logger.info("Using virtual threads for the worker pool");
+        return (ExecutorService) pool;
+      } catch (Exception e) {
+        logger.warn("Virtual threads are not available on this JVM; using platform threads");
+      }
+    }
+    return Executors.newCachedThreadPool(newDaemonThreadFactory(prefix));
+  }
+}
@@ -1,31 +1,93 @@
 package com.proquest.magnolia.statemgr.common;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.util.HashSet;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Base class of the ZK clients. The ZooKeeper session is re-established when it expires:
+ * a new handle is created, and once it has connected every node watched through
+ * {@link #addWatch(String, Watcher)} is handed a node event so its watcher re-reads the
+ * node, re-arms its watch and resyncs by version. Failed operations are retried with
+ * exponential backoff and jitter. The round trips, retries and events are recorded in the
+ * client's {@link ZKMetrics}, registered as an MBean. Once a {@link StateJournal} is opened,
+ * the values read and written are journaled too.
  */
 public class ZKClientBase implements Watcher {
 
   private static final Logger logger = Logger.getLogger(ZKClientBase.class);
+  private static final int KNOWN_PATH_CACHE_SIZE = 1024;
+  private static final AtomicInteger instances = new AtomicInteger(0);
+  /**
+   * The session timeout requested from ZK, set by the <code>statemgr.zk.sessionTimeout</code> system
+   * property. The ephemeral nodes of a client that dies go away once it has passed, so it bounds
+   * how long a dead client goes unnoticed.
+   */
+  private static final int SESSION_TIMEOUT = Integer.getInteger("statemgr.zk.sessionTimeout", 60000);
 
-  protected final ZooKeeper zookeeper;
+  /**
+   * The encoding of all node data.
+   */
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String zkConnection;
+  private volatile ZooKeeper zookeeper;
+  private AtomicInteger session = new AtomicInteger(0);
+  private volatile boolean restoreWatches = false;
   private AtomicBoolean closed = new AtomicBoolean(false);
   private long retryDelay = 500L;
+  private long maxRetryDelay = Long.getLong("statemgr.zk.maxRetryDelay", 30000L);
   private int retryCount = 10;
+  private Random random = new Random();
   private List<ACL> acl = ZooDefs.Ids.OPEN_ACL_UNSAFE;
-  private Set<Watcher> watchers = new HashSet<Watcher>();
+  private CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+  private ConcurrentMap<String,CopyOnWriteArrayList<Watcher>> pathWatchers = new ConcurrentHashMap<String, CopyOnWriteArrayList<Watcher>>();
+  private ConcurrentMap<String,Ephemeral> ephemerals = new ConcurrentHashMap<String, Ephemeral>();
+  private final int maxInFlight = Integer.getInteger("statemgr.zk.maxInFlight", 256);
+  private Semaphore inFlight = new Semaphore(maxInFlight);
+  private final ZKMetrics metrics = new ZKMetrics(this);
+  private ObjectName metricsName;
+  private volatile StateJournal journal = null;
+  private volatile Thread eventThread = null;
+  private ScheduledExecutorService scheduler;
+  private EventDispatcher eventDispatcher;
+  private ExecutorService workerPool;
+  private Map<String,Boolean> knownPaths = Collections.synchronizedMap(new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+      return size() > KNOWN_PATH_CACHE_SIZE;
+    }
+  });
 
   public ZKClientBase(String zkConnection) throws IOException {
-    this.zookeeper = new ZooKeeper(zkConnection, 60000, this);
+    this.zkConnection = zkConnection;
+    this.zookeeper = new ZooKeeper(zkConnection, SESSION_TIMEOUT, new SessionWatcher(session.get()));
+    this.metricsName = Jmx.register(metrics, "ZooKeeper", getClass().getSimpleName() + "-" + instances.incrementAndGet());
   }
 
   /**
@@ -35,17 +97,202 @@ public class ZKClientBase implements Watcher {
   public void close() {
     if (closed.compareAndSet(false, true)) {
       doClose();
+      Jmx.unregister(metricsName);
+      if (journal != null) {
+        journal.close();
+      }
+      synchronized (this) {
+        if (scheduler != null) {
+          scheduler.shutdownNow();
+        }
+        if (eventDispatcher != null) {
+          eventDispatcher.shutdown();
+        }
+        if (workerPool != null) {
+          workerPool.shutdownNow();
+        }
+      }
     }
   }
 
   /**
-   * return zookeeper client instance
+   * Returns the current zookeeper client instance. The instance is replaced when the
+   * session expires, so it should not be kept across operations.
    * @return zookeeper client instance
    */
   public ZooKeeper getZookeeper() {
     return zookeeper;
   }
 
+  /**
+   * @return  The operation and event metrics of this client
+   */
+  public ZKMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Opens the journal of this client, if journaling is on, and snapshots it every
+   * <code>statemgr.journal.snapshotInterval</code> milliseconds.
+   * @param name  The journal name, unique to the client on this host
+   * @return The journal, or null if it is not kept
+   */
+  public synchronized StateJournal openJournal(String name) {
+    if (journal == null) {
+      journal = StateJournal.open(name);
+      if (journal != null) {
+        final StateJournal j = journal;
+        long interval = Long.getLong("statemgr.journal.snapshotInterval", 300000L);
+        getScheduler().scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            getWorkerPool().execute(new Runnable() {
+              public void run() {
+                j.snapshot();
+              }
+            });
+          }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+    return journal;
+  }
+
+  /**
+   * @return  The journal of this client, or null if it is not kept
+   */
+  public StateJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Journals a node value, if a journal is kept.
+   * @param type  StateJournal.OBSERVED or StateJournal.ISSUED
+   * @param path  The node path
+   * @param data  The node data
+   * @param stat  The node stat after the read or write, or null if not known
+   */
+  public void journal(byte type, String path, byte[] data, Stat stat) {
+    StateJournal j = journal;
+    if (j != null) {
+      j.record(type, path, data, stat);
+    }
+  }
+
+  /**
+   * @return  The number of asynchronous operations waiting for ZK
+   */
+  int getInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  /**
+   * Replaces the expired zookeeper client instance with a new one. The watches are
+   * restored once the new session has connected.
+   * @param expired The session number of the expired instance
+   */
+  private void reconnect(final int expired) {
+    if (isClosed() || !session.compareAndSet(expired, expired + 1)) {
+      return;
+    }
+    ZooKeeper old = zookeeper;
+    restoreWatches = true;
+    try {
+      zookeeper = new ZooKeeper(zkConnection, SESSION_TIMEOUT, new SessionWatcher(expired + 1));
+      logger.info(String.format("Reconnecting after the session expired {connection=[%s]}", zkConnection));
+    } catch (IOException e) {
+      logger.warn(String.format("Unable to reconnect {connection=[%s]}", zkConnection), e);
+      session.set(expired);
+      getScheduler().schedule(new Runnable() {
+        public void run() {
+          reconnect(expired);
+        }
+      }, getBackoffDelay(1), TimeUnit.MILLISECONDS);
+      return;
+    }
+    try {
+      old.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates again the ephemeral nodes owned by this client, which went away with the expired
+   * session. Requests of a session are applied in order, so they exist before the watches are
+   * restored. A node now held by another client is given up and its owner told.
+   */
+  private void recreateEphemerals() {
+    if (!ephemerals.isEmpty()) {
+      logger.info(String.format("Session re-established, re-creating ephemeral nodes {nodes=[%d]}", ephemerals.size()));
+    }
+    for (Map.Entry<String,Ephemeral> entry : ephemerals.entrySet()) {
+      recreate(entry.getKey(), entry.getValue(), 0);
+    }
+  }
+
+  private void recreate(final String path, final Ephemeral ephemeral, final int attempt) {
+    final ZooKeeper zk = zookeeper;
+    final long started = System.nanoTime();
+    zk.create(path, ephemeral.data, acl, CreateMode.EPHEMERAL, new AsyncCallback.StringCallback() {
+      public void processResult(int rc, String p, Object ctx, String name) {
+        metrics.record(ZKMetrics.Op.Create, started, rc);
+        switch (KeeperException.Code.get(rc)) {
+          case OK:
+            break;
+          case NODEEXISTS:
+            // Ours if an earlier attempt was applied before the connection was lost
+            zk.exists(path, false, new AsyncCallback.StatCallback() {
+              public void processResult(int rc, String p, Object ctx, Stat stat) {
+                if (stat == null) {
+                  recreate(path, ephemeral, attempt + 1);
+                } else if (stat.getEphemeralOwner() != zk.getSessionId()) {
+                  lost(path, ephemeral);
+                }
+              }
+            }, null);
+            break;
+          case CONNECTIONLOSS:
+          case OPERATIONTIMEOUT:
+            if (!retryLater(new Runnable() {
+              public void run() {
+                recreate(path, ephemeral, attempt + 1);
+              }
+            }, attempt)) {
+              lost(path, ephemeral);
+            }
+            break;
+          default:
+            lost(path, ephemeral);
+        }
+      }
+    }, null);
+  }
+
+  private void lost(final String path, final Ephemeral ephemeral) {
+    if (!ephemerals.remove(path, ephemeral)) {
+      // Released in the meantime
+      return;
+    }
+    logger.warn(String.format("Unable to re-create an ephemeral node after the session expired {node=[%s]}", path));
+    if (ephemeral.listener != null) {
+      getWorkerPool().execute(new Runnable() {
+        public void run() {
+          ephemeral.listener.ephemeralLost(path);
+        }
+      });
+    }
+  }
+
+  /**
+   * Hands every watched node a node event so its watchers read it again and re-arm their watches.
+   */
+  private void restoreWatches() {
+    logger.info(String.format("Session re-established, restoring watches {nodes=[%d]}", pathWatchers.size()));
+    for (String path : pathWatchers.keySet()) {
+      process(new WatchedEvent(Event.EventType.NodeDataChanged, Event.KeeperState.SyncConnected, path));
+    }
+  }
+
   /**
    * get the retry delay in milliseconds
    * @return the retry delay
@@ -71,27 +318,38 @@ public class ZKClientBase implements Watcher {
 
   /**
    * Creates a node with the specified data. If the node already exists, only data is modified.
+   * The write is attempted optimistically as a single <code>setData</code>; the node and any
+   * missing parents are only created when ZK reports that they do not exist yet.
    * @param node  Node name
    * @param data  Data associated with the node
    */
-  public void setData(String node, String data) throws InterruptedException, KeeperException {
+  public void setData(final String node, String data) throws InterruptedException, KeeperException {
     logger.debug(String.format("Setting node data {node=[%s], data=[%s]}", node, data));
-    ensurePathExists(node);
-    ensureExists(node, data.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    final byte[] b = encode(data);
+    retryOperation(ZKMetrics.Op.SetData, new ZooKeeperOperation() {
+      public boolean execute() throws KeeperException, InterruptedException {
+        writeNode(node, b, acl, CreateMode.PERSISTENT);
+        return true;
+      }
+    });
+    journal(StateJournal.ISSUED, node, b, null);
   }
 
   public String getData(String node) {
     String desc = "";
+    long start = System.nanoTime();
     try {
       logger.debug(String.format("Getting data from node {node=[%s]}", node));
       Stat stat = zookeeper.exists(node, this);
       if (stat != null) {
         byte[] b = zookeeper.getData(node, this, stat);
         if (b != null) {
-          desc = new String(b);
+          desc = decode(b);
         }
       }
+      metrics.record(ZKMetrics.Op.GetData, start, 0);
     } catch (Exception e) {
+      metrics.recordError(ZKMetrics.Op.GetData);
       logger.error(String.format("Error getting data from node {node=[%s]}", node), e);
     }
     return desc;
@@ -99,17 +357,22 @@ public class ZKClientBase implements Watcher {
 
   /**
    * Ensures that the given path exists with no data, the current
-   * ACL and no flags
+   * ACL and no flags. Existing nodes are left untouched and paths
+   * already known to exist are skipped without a round trip.
    * @param path
    */
-  public void ensurePathExists(String path) {
-    StringBuilder currNode = new StringBuilder();
-    String[] allNodes = path.split("/");
-    for (String n :  allNodes) {
-      if (n.length() > 0) {
-        currNode.append("/").append(n);
-        ensureExists(currNode.toString(), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-      }
+  public void ensurePathExists(final String path) {
+    try {
+      retryOperation(ZKMetrics.Op.Create, new ZooKeeperOperation() {
+        public boolean execute() throws KeeperException, InterruptedException {
+          createPath(path, true);
+          return true;
+        }
+      });
+    } catch (KeeperException e) {
+      logger.warn("Caught: " + e, e);
+    } catch (InterruptedException e) {
+      logger.warn("Caught: " + e, e);
     }
   }
 
@@ -121,14 +384,9 @@ public class ZKClientBase implements Watcher {
    */
   public void ensureExists(final String path, final byte[] data, final List<ACL> acl, final CreateMode flags) {
     try {
-      retryOperation(new ZooKeeperOperation() {
+      retryOperation(ZKMetrics.Op.SetData, new ZooKeeperOperation() {
         public boolean execute() throws KeeperException, InterruptedException {
-          Stat stat = zookeeper.exists(path, false);
-          if (stat != null) {
-            zookeeper.setData(path, data, -1);
-          } else {
-            zookeeper.create(path, data, acl, flags);
-          }
+          writeNode(path, data, acl, flags);
           return true;
         }
       });
@@ -140,25 +398,884 @@ public class ZKClientBase implements Watcher {
   }
 
   /**
-   * Perform the given operation, retrying if the connection fails
+   * Creates an ephemeral node owned by this client with the given data, replacing any node
+   * left at the path by another (i.e. an expired) session. Missing parents are created.
+   * The node is created again if the session expires, until it is deleted with {@link #delete}.
+   * @param path      Node name
+   * @param data      Data associated with the node
+   * @param listener  Told if the node can't be created again after the session expired, or null
+   */
+  public void createEphemeral(final String path, final byte[] data, EphemeralListener listener) throws KeeperException, InterruptedException {
+    // Registered first, so a session expiring during the create does not lose the node
+    Ephemeral ephemeral = new Ephemeral(data, listener);
+    ephemerals.put(path, ephemeral);
+    boolean created = false;
+    try {
+      retryOperation(ZKMetrics.Op.Create, new ZooKeeperOperation() {
+        public boolean execute() throws KeeperException, InterruptedException {
+          try {
+            zookeeper.create(path, data, acl, CreateMode.EPHEMERAL);
+          } catch (KeeperException.NodeExistsException e) {
+            zookeeper.delete(path, -1);
+            zookeeper.create(path, data, acl, CreateMode.EPHEMERAL);
+          } catch (KeeperException.NoNodeException e) {
+            createPath(getParentPath(path), false);
+            zookeeper.create(path, data, acl, CreateMode.EPHEMERAL);
+          }
+          return true;
+        }
+      });
+      created = true;
+    } finally {
+      if (!created) {
+        ephemerals.remove(path, ephemeral);
+      }
+    }
+  }
+
+  /**
+   * Keeps an ephemeral node created by this client, outside of {@link #createEphemeral}, after
+   * the session expires; it is created again until it is deleted or released.
+   * @param path      Node name
+   * @param data      The node data
+   * @param listener  Told if the node can't be created again after the session expired, or null
+   */
+  public void ownEphemeral(String path, byte[] data, EphemeralListener listener) {
+    ephemerals.put(path, new Ephemeral(data, listener));
+  }
+
+  /**
+   * Stops creating an ephemeral node again after the session expires.
+   * @param path  Node name
+   */
+  public void releaseEphemeral(String path) {
+    ephemerals.remove(path);
+  }
+
+  /**
+   * Creates an ephemeral node as a lock held by this session. Unlike {@link #createEphemeral},
+   * the node is not created again after the session expires; it is released with {@link #delete}.
+   * @param path  Node name; its parent must exist
+   * @return true if the lock is held by this session, false if another session holds it
+   */
+  public boolean createLock(final String path) throws KeeperException, InterruptedException {
+    return (Boolean) retryOperation(ZKMetrics.Op.Create, new ZooKeeperOperation() {
+      public boolean execute() throws KeeperException, InterruptedException {
+        while (true) {
+          try {
+            zookeeper.create(path, new byte[0], acl, CreateMode.EPHEMERAL);
+            return true;
+          } catch (KeeperException.NodeExistsException e) {
+            // Ours if an earlier attempt was created before the connection was lost
+            Stat stat = zookeeper.exists(path, false);
+            if (stat != null) {
+              return stat.getEphemeralOwner() == zookeeper.getSessionId();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes the node if it exists.
+   * @param path  Node name
+   */
+  public void delete(final String path) throws KeeperException, InterruptedException {
+    ephemerals.remove(path);
+    retryOperation(ZKMetrics.Op.Delete, new ZooKeeperOperation() {
+      public boolean execute() throws KeeperException, InterruptedException {
+        try {
+          zookeeper.delete(path, -1);
+        } catch (KeeperException.NoNodeException e) {
+          // Already gone
+        }
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Writes the node data, creating the node (and its parents) only when it does not exist.
+   * In the steady state this costs a single round trip.
+   */
+  private void writeNode(String path, byte[] data, List<ACL> acl, CreateMode flags)
+      throws KeeperException, InterruptedException {
+    try {
+      zookeeper.setData(path, data, -1);
+      return;
+    } catch (KeeperException.NoNodeException e) {
+      // Fall through and create the node
+    }
+
+    try {
+      zookeeper.create(path, data, acl, flags);
+    } catch (KeeperException.NodeExistsException e) {
+      // Somebody else created it in the meantime
+      zookeeper.setData(path, data, -1);
+    } catch (KeeperException.NoNodeException e) {
+      // A parent is missing; create the parents and try again
+      String parent = getParentPath(path);
+      createPath(parent, true);
+      try {
+        createLeaf(path, data, acl, flags);
+      } catch (KeeperException.NoNodeException e2) {
+        // The cache is stale (a parent was removed); walk the whole path
+        forgetPath(parent);
+        createPath(parent, false);
+        createLeaf(path, data, acl, flags);
+      }
+    }
+  }
+
+  /**
+   * Creates the leaf node, falling back to a plain write if it already exists.
+   */
+  private void createLeaf(String path, byte[] data, List<ACL> acl, CreateMode flags)
+      throws KeeperException, InterruptedException {
+    try {
+      zookeeper.create(path, data, acl, flags);
+    } catch (KeeperException.NodeExistsException e) {
+      zookeeper.setData(path, data, -1);
+    }
+  }
+
+  /**
+   * Creates each segment of the specified path that does not already exist.
+   * @param path      The path to create
+   * @param useCache  If true, segments already known to exist are skipped
+   */
+  private void createPath(String path, boolean useCache) throws KeeperException, InterruptedException {
+    if (path.length() == 0 || (useCache && knownPaths.containsKey(path))) {
+      return;
+    }
+    StringBuilder currNode = new StringBuilder();
+    String[] allNodes = path.split("/");
+    for (String n :  allNodes) {
+      if (n.length() > 0) {
+        currNode.append("/").append(n);
+        String p = currNode.toString();
+        if (useCache && knownPaths.containsKey(p)) {
+          continue;
+        }
+        try {
+          zookeeper.create(p, null, acl, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+          // Already there
+        }
+        knownPaths.put(p, Boolean.TRUE);
+      }
+    }
+  }
+
+  /**
+   * Removes the specified path and all of its ancestors from the known path cache.
+   */
+  private void forgetPath(String path) {
+    for (String p = path; p.length() > 0; p = getParentPath(p)) {
+      knownPaths.remove(p);
+    }
+  }
+
+  private static String getParentPath(String path) {
+    int i = path.lastIndexOf('/');
+    return (i > 0) ? path.substring(0, i) : "";
+  }
+
+  /**
+   * Asynchronously writes the node data, creating the node and any missing parents when needed.
+   * Writes issued through this client are applied by ZK in submission order. The number of
+   * outstanding requests is bounded, so this call blocks when too many are in flight, except
+   * on the scheduler. It must not be called from a ZooKeeper callback or watcher, since the
+   * event thread completes the operations that free the bound; hand the work to the worker
+   * pool instead.
+   * @param node  Node name
+   * @param data  Data associated with the node
+   * @return A future holding the node's <code>Stat</code>, or <code>null</code> if the node was created
+   */
+  public ListenableFuture<Stat> setDataAsync(String node, String data) {
+    logger.debug(String.format("Setting node data asynchronously {node=[%s], data=[%s]}", node, data));
+    AsyncWrite write = new AsyncWrite(node, encode(data));
+    write.setData();
+    return write.future;
+  }
+
+  /**
+   * Submits all of the writes at once so they are pipelined over the connection.
+   * @param nodeData  Map of node name to data, written in iteration order
+   * @return A future that completes once every write has completed
+   */
+  public ListenableFuture<List<Stat>> setDataAsync(Map<String,String> nodeData) {
+    List<ListenableFuture<Stat>> futures = new ArrayList<ListenableFuture<Stat>>(nodeData.size());
+    for (Map.Entry<String,String> entry : nodeData.entrySet()) {
+      futures.add(setDataAsync(entry.getKey(), entry.getValue()));
+    }
+    return Futures.allAsList(futures);
+  }
+
+  /**
+   * Asynchronously reads the node data. No watch is left on the node. Blocks like
+   * {@link #setDataAsync(String, String)} when too many operations are in flight.
+   * @param node  Node name
+   * @return A future holding the node data, or an empty string if the node does not exist
+   */
+  public ListenableFuture<String> getDataAsync(String node) {
+    logger.debug(String.format("Getting data from node asynchronously {node=[%s]}", node));
+    AsyncRead read = new AsyncRead(node);
+    read.getData();
+    return read.future;
+  }
+
+  /**
+   * Submits all of the reads at once so they are pipelined over the connection.
+   * @param nodes The nodes to read
+   * @return A future holding the node data in the same order as the nodes
+   */
+  public ListenableFuture<List<String>> getDataAsync(List<String> nodes) {
+    List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>(nodes.size());
+    for (String node : nodes) {
+      futures.add(getDataAsync(node));
+    }
+    return Futures.allAsList(futures);
+  }
+
+  /**
+   * Reads the nodes like {@link #getDataAsync(List)}, except that a node whose value is in the
+   * journal is only checked with an <code>exists</code>; its data is read only if its version
+   * has changed. Without a journal every node is read. Blocks like
+   * {@link #setDataAsync(String, String)} when too many operations are in flight.
+   * @param nodes   The nodes to read
+   * @param mzxids  Filled with the modification zxid of every existing node as read, so a
+   *                {@link DataMonitor} can start from them
+   * @return A future holding the node data in the same order as the nodes
+   */
+  public ListenableFuture<List<String>> getJournaledDataAsync(List<String> nodes, Map<String,Long> mzxids) {
+    StateJournal j = journal;
+    List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>(nodes.size());
+    for (String node : nodes) {
+      AsyncRead read = new AsyncRead(node, (j != null) ? j.get(node) : null, mzxids);
+      read.read();
+      futures.add(read.future);
+    }
+    return Futures.allAsList(futures);
+  }
+
+  /**
+   * Asynchronously updates the node data with a version check: the node is read, the update
+   * is applied to its data and the result is written back only if the node has not changed
+   * in the meantime; otherwise the whole cycle is repeated. The node and any missing parents
+   * are created if the node does not exist. The update may be applied more than once, so it
+   * must not have side effects. Blocks like {@link #setDataAsync(String, String)} when too
+   * many operations are in flight.
+   * @param node    Node name
+   * @param update  Computes the new node data from the current data
+   * @return A future holding the node's <code>Stat</code>, or <code>null</code> if the node was
+   *         created or left unchanged
+   */
+  public ListenableFuture<Stat> updateDataAsync(String node, DataUpdate update) {
+    logger.debug(String.format("Updating node data asynchronously {node=[%s]}", node));
+    AsyncUpdate au = new AsyncUpdate(node, update);
+    au.getData();
+    return au.future;
+  }
+
+  /**
+   * @return  The string encoded as UTF-8
+   */
+  public static byte[] encode(String data) {
+    return data.getBytes(UTF8);
+  }
+
+  /**
+   * @return  The UTF-8 node data as a string, or an empty string if there is no data
+   */
+  public static String decode(byte[] data) {
+    return (data != null) ? new String(data, UTF8) : "";
+  }
+
+  /**
+   * Waits for an asynchronous operation to complete, unwrapping any ZK failure.
+   * @param future  The future returned by one of the asynchronous operations
+   * @return The result of the operation
+   */
+  public static <T> T waitFor(Future<T> future) throws KeeperException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KeeperException) {
+        throw (KeeperException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the scheduler shared by this client for delayed and periodic work. Tasks run on it
+   * must not block; its size is set by the <code>statemgr.scheduler.threads</code> system property.
+   * @return The scheduler
+   */
+  public synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = ThreadPools.newScheduler("zk-scheduler", Integer.getInteger("statemgr.scheduler.threads", 2));
+    }
+    return scheduler;
+  }
+
+  /**
+   * Returns the pool shared by this client for blocking work such as running child processes.
+   * Setting the <code>statemgr.virtualThreads</code> system property uses virtual threads when
+   * the JVM supports them.
+   * @return The worker pool
+   */
+  public synchronized ExecutorService getWorkerPool() {
+    if (workerPool == null) {
+      workerPool = ThreadPools.newWorkerPool("zk-worker", Boolean.getBoolean("statemgr.virtualThreads"));
+    }
+    return workerPool;
+  }
+
+  /**
+   * Returns the dispatcher used to run event listeners off the ZooKeeper event thread.
+   * Its size is set by the <code>statemgr.dispatch.threads</code> and
+   * <code>statemgr.dispatch.queueBound</code> system properties.
+   * @return The event dispatcher
+   */
+  public synchronized EventDispatcher getEventDispatcher() {
+    if (eventDispatcher == null) {
+      eventDispatcher = new EventDispatcher(Integer.getInteger("statemgr.dispatch.threads", 4),
+          Integer.getInteger("statemgr.dispatch.queueBound", 10000));
+    }
+    return eventDispatcher;
+  }
+
+  /**
+   * Schedules an asynchronous operation to be retried after a connection loss or an
+   * expired session.
+   * @return false if the operation has run out of retries
+   */
+  private boolean retryLater(Runnable operation, int attempt) {
+    if (attempt >= retryCount || isClosed()) {
+      return false;
+    }
+    logger.debug("Async attempt " + attempt + " failed with connection loss so retrying");
+    metrics.recordRetry();
+    getScheduler().schedule(operation, getBackoffDelay(attempt + 1), TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Returns the delay before the specified retry: the retry delay doubled with every
+   * attempt, up to <code>statemgr.zk.maxRetryDelay</code>, of which a random half is
+   * taken so that clients do not retry in lock step.
+   * @param attempt The number of the attempts performed so far
+   * @return The delay in milliseconds
+   */
+  long getBackoffDelay(int attempt) {
+    long delay = Math.min(maxRetryDelay, retryDelay << Math.min(attempt - 1, 20));
+    return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+  }
+
+  /**
+   * Takes a permit for an asynchronous operation, bounding the operations in flight. Threads
+   * block until one is free, except the scheduler and ZooKeeper event threads: they run the
+   * retries and callbacks that release permits, so they never wait and issue the operation
+   * without one if none is free. Operations must not be issued from the event thread at all;
+   * that is asserted, and only tolerated when assertions are off.
+   * @return true if a permit was taken
+   */
+  private boolean acquirePermit() {
+    boolean onEventThread = (Thread.currentThread() == eventThread);
+    assert !onEventThread : "Asynchronous ZooKeeper operation issued from the event thread";
+    if (!onEventThread && !ThreadPools.isSchedulerThread()) {
+      inFlight.acquireUninterruptibly();
+      return true;
+    }
+    if (inFlight.tryAcquire()) {
+      return true;
+    }
+    logger.debug("Too many operations in flight, issuing one without a permit");
+    return false;
+  }
+
+  /**
+   * An asynchronous operation; holds its permit from construction until it completes.
+   */
+  private abstract class AsyncOperation {
+    private final boolean permitted = acquirePermit();
+
+    void releasePermit() {
+      if (permitted) {
+        inFlight.release();
+      }
+    }
+  }
+
+  /**
+   * State machine for an asynchronous write: setData, then create on NoNode, then create the
+   * parents on NoNode. Each step is issued from the callback of the previous one.
+   */
+  private class AsyncWrite extends AsyncOperation implements AsyncCallback.StatCallback, AsyncCallback.StringCallback {
+    private final String path;
+    private final byte[] data;
+    private final SettableFuture<Stat> future = SettableFuture.create();
+    private List<String> parents;
+    private int parentIndex;
+    private boolean walkedWholePath = false;
+    private int attempt = 0;
+    private long started;
+
+    AsyncWrite(String path, byte[] data) {
+      this.path = path;
+      this.data = data;
+    }
+
+    void setData() {
+      started = System.nanoTime();
+      zookeeper.setData(path, data, -1, this, null);
+    }
+
+    void create() {
+      started = System.nanoTime();
+      zookeeper.create(path, data, acl, CreateMode.PERSISTENT, this, path);
+    }
+
+    void createParents(boolean useCache) {
+      parents = new ArrayList<String>();
+      for (String p = getParentPath(path); p.length() > 0; p = getParentPath(p)) {
+        if (useCache && knownPaths.containsKey(p)) {
+          break;
+        }
+        parents.add(0, p);
+      }
+      parentIndex = 0;
+      createNextParent();
+    }
+
+    void createNextParent() {
+      if (parentIndex < parents.size()) {
+        String p = parents.get(parentIndex);
+        started = System.nanoTime();
+        zookeeper.create(p, null, acl, CreateMode.PERSISTENT, this, p);
+      } else {
+        create();
+      }
+    }
+
+    /**
+     * setData callback
+     */
+    public void processResult(int rc, String p, Object ctx, Stat stat) {
+      metrics.record(ZKMetrics.Op.SetData, started, rc);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          complete(stat);
+          break;
+        case NONODE:
+          create();
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          retry(new Runnable() {
+            public void run() {
+              setData();
+            }
+          });
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    /**
+     * create callback for both the node and its parents
+     */
+    public void processResult(int rc, String p, Object ctx, String name) {
+      metrics.record(ZKMetrics.Op.Create, started, rc);
+      boolean isLeaf = path.equals(ctx);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          if (isLeaf) {
+            complete(null);
+          } else {
+            createdParent((String) ctx);
+          }
+          break;
+        case NODEEXISTS:
+          if (isLeaf) {
+            // Somebody else created it in the meantime
+            setData();
+          } else {
+            createdParent((String) ctx);
+          }
+          break;
+        case NONODE:
+          if (parents == null) {
+            createParents(true);
+          } else if (!walkedWholePath) {
+            // The cache is stale (a parent was removed); walk the whole path
+            walkedWholePath = true;
+            forgetPath(getParentPath(path));
+            createParents(false);
+          } else {
+            fail(rc);
+          }
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          retry(new Runnable() {
+            public void run() {
+              if (parents == null) {
+                create();
+              } else {
+                createNextParent();
+              }
+            }
+          });
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    private void createdParent(String parent) {
+      knownPaths.put(parent, Boolean.TRUE);
+      parentIndex++;
+      createNextParent();
+    }
+
+    private void retry(Runnable operation) {
+      if (!retryLater(operation, attempt++)) {
+        fail(KeeperException.Code.CONNECTIONLOSS.intValue());
+      }
+    }
+
+    private void complete(Stat stat) {
+      releasePermit();
+      journal(StateJournal.ISSUED, path, data, stat);
+      future.set(stat);
+    }
+
+    private void fail(int rc) {
+      releasePermit();
+      future.setException(KeeperException.create(KeeperException.Code.get(rc), path));
+    }
+  }
+
+  /**
+   * Asynchronous read of the node data. When the journal holds the node, its version is
+   * checked first and the journaled data is used if it has not changed.
+   */
+  private class AsyncRead extends AsyncOperation implements AsyncCallback.DataCallback, AsyncCallback.StatCallback {
+    private final String path;
+    private final SettableFuture<String> future = SettableFuture.create();
+    private StateJournal.Entry journaled;
+    private final Map<String,Long> mzxids;
+    private int attempt = 0;
+    private long started;
+
+    AsyncRead(String path) {
+      this(path, null, null);
+    }
+
+    AsyncRead(String path, StateJournal.Entry journaled, Map<String,Long> mzxids) {
+      this.path = path;
+      this.journaled = journaled;
+      this.mzxids = mzxids;
+    }
+
+    void read() {
+      if (journaled != null) {
+        started = System.nanoTime();
+        zookeeper.exists(path, false, this, null);
+      } else {
+        getData();
+      }
+    }
+
+    void getData() {
+      started = System.nanoTime();
+      zookeeper.getData(path, false, this, null);
+    }
+
+    /**
+     * exists callback; the journaled data is used if the node has not changed since
+     */
+    public void processResult(int rc, String p, Object ctx, Stat stat) {
+      metrics.record(ZKMetrics.Op.Exists, started, (rc == KeeperException.Code.NONODE.intValue()) ? 0 : rc);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          if (stat.getMzxid() == journaled.getMzxid()) {
+            releasePermit();
+            seen(stat);
+            future.set(journaled.getData());
+          } else {
+            journaled = null;
+            getData();
+          }
+          break;
+        case NONODE:
+          releasePermit();
+          future.set("");
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          if (!retryLater(new Runnable() {
+            public void run() {
+              read();
+            }
+          }, attempt++)) {
+            fail(rc);
+          }
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    public void processResult(int rc, String p, Object ctx, byte[] data, Stat stat) {
+      metrics.record(ZKMetrics.Op.GetData, started, (rc == KeeperException.Code.NONODE.intValue()) ? 0 : rc);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          releasePermit();
+          journal(StateJournal.OBSERVED, path, data, stat);
+          seen(stat);
+          future.set(decode(data));
+          break;
+        case NONODE:
+          releasePermit();
+          future.set("");
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          if (!retryLater(new Runnable() {
+            public void run() {
+              getData();
+            }
+          }, attempt++)) {
+            fail(rc);
+          }
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    private void seen(Stat stat) {
+      if (mzxids != null) {
+        mzxids.put(path, stat.getMzxid());
+      }
+    }
+
+    private void fail(int rc) {
+      releasePermit();
+      future.setException(KeeperException.create(KeeperException.Code.get(rc), path));
+    }
+  }
+
+  /**
+   * State machine for a versioned read-modify-write: getData, then setData with the version
+   * read (or create when the node does not exist, creating the parents on NoNode). A version
+   * conflict or a concurrent create or delete starts over with a fresh read.
+   */
+  private class AsyncUpdate extends AsyncOperation implements AsyncCallback.DataCallback, AsyncCallback.StatCallback, AsyncCallback.StringCallback {
+    private final String path;
+    private final DataUpdate update;
+    private final SettableFuture<Stat> future = SettableFuture.create();
+    private byte[] data;
+    private List<String> parents = null;
+    private int parentIndex;
+    private int attempt = 0;
+    private long started;
+
+    AsyncUpdate(String path, DataUpdate update) {
+      this.path = path;
+      this.update = update;
+    }
+
+    void getData() {
+      parents = null;
+      started = System.nanoTime();
+      zookeeper.getData(path, false, this, null);
+    }
+
+    void create() {
+      started = System.nanoTime();
+      zookeeper.create(path, data, acl, CreateMode.PERSISTENT, this, path);
+    }
+
+    void createNextParent() {
+      if (parentIndex < parents.size()) {
+        String p = parents.get(parentIndex);
+        started = System.nanoTime();
+        zookeeper.create(p, null, acl, CreateMode.PERSISTENT, this, p);
+      } else {
+        create();
+      }
+    }
+
+    /**
+     * getData callback
+     */
+    public void processResult(int rc, String p, Object ctx, byte[] current, Stat stat) {
+      metrics.record(ZKMetrics.Op.GetData, started, (rc == KeeperException.Code.NONODE.intValue()) ? 0 : rc);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          data = update.apply(current);
+          if (data == null) {
+            complete(stat);
+          } else {
+            started = System.nanoTime();
+            zookeeper.setData(path, data, stat.getVersion(), this, null);
+          }
+          break;
+        case NONODE:
+          data = update.apply(null);
+          if (data == null) {
+            complete(null);
+          } else {
+            create();
+          }
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          retry();
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    /**
+     * setData callback
+     */
+    public void processResult(int rc, String p, Object ctx, Stat stat) {
+      metrics.record(ZKMetrics.Op.SetData, started, rc);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          complete(stat);
+          break;
+        case BADVERSION:
+        case NONODE:
+          // Changed or deleted since it was read
+          getData();
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          retry();
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    /**
+     * create callback for both the node and its parents
+     */
+    public void processResult(int rc, String p, Object ctx, String name) {
+      metrics.record(ZKMetrics.Op.Create, started, rc);
+      boolean isLeaf = path.equals(ctx);
+      switch (KeeperException.Code.get(rc)) {
+        case OK:
+          if (isLeaf) {
+            complete(null);
+          } else {
+            createdParent((String) ctx);
+          }
+          break;
+        case NODEEXISTS:
+          if (isLeaf) {
+            // Created by somebody else since it was read
+            getData();
+          } else {
+            createdParent((String) ctx);
+          }
+          break;
+        case NONODE:
+          if (parents != null) {
+            fail(rc);
+            break;
+          }
+          parents = new ArrayList<String>();
+          for (String parent = getParentPath(path); parent.length() > 0; parent = getParentPath(parent)) {
+            parents.add(0, parent);
+          }
+          parentIndex = 0;
+          createNextParent();
+          break;
+        case SESSIONEXPIRED:
+        case CONNECTIONLOSS:
+          retry();
+          break;
+        default:
+          fail(rc);
+      }
+    }
+
+    private void createdParent(String parent) {
+      knownPaths.put(parent, Boolean.TRUE);
+      parentIndex++;
+      createNextParent();
+    }
+
+    private void retry() {
+      if (!retryLater(new Runnable() {
+        public void run() {
+          getData();
+        }
+      }, attempt++)) {
+        fail(KeeperException.Code.CONNECTIONLOSS.intValue());
+      }
+    }
+
+    private void complete(Stat stat) {
+      releasePermit();
+      if (data != null) {
+        journal(StateJournal.ISSUED, path, data, stat);
+      }
+      future.set(stat);
+    }
+
+    private void fail(int rc) {
+      releasePermit();
+      future.setException(KeeperException.create(KeeperException.Code.get(rc), path));
+    }
+  }
+
+  /**
+   * Perform the given operation, retrying if the connection fails or the session expires.
+   * Each attempt is recorded as a round trip of the specified operation type.
    * @return object. it needs to be cast to the callee's expected
    * return type.
    */
-  private Object retryOperation(ZooKeeperOperation operation) throws KeeperException, InterruptedException {
+  private Object retryOperation(ZKMetrics.Op op, ZooKeeperOperation operation) throws KeeperException, InterruptedException {
     KeeperException exception = null;
     for (int i = 0; i < retryCount; i++) {
+      if (i > 0) {
+        metrics.recordRetry();
+      }
+      long start = System.nanoTime();
       try {
-        return operation.execute();
+        Object result = operation.execute();
+        metrics.record(op, start, 0);
+        return result;
       } catch (KeeperException.SessionExpiredException e) {
-        logger.warn("Session expired for: " + zookeeper + " so reconnecting due to: " + e, e);
-        throw e;
+        metrics.record(op, start, e.code().intValue());
+        if (exception == null) {
+          exception = e;
+        }
+        logger.warn("Session expired for: " + zookeeper + " so waiting for the reconnect: " + e);
+        retryDelay(i + 1);
       } catch (KeeperException.ConnectionLossException e) {
+        metrics.record(op, start, e.code().intValue());
         if (exception == null) {
           exception = e;
         }
         logger.debug("Attempt " + i + " failed with connection loss so " +
             "attempting to reconnect: " + e, e);
         retryDelay(i);
+      } catch (KeeperException e) {
+        metrics.record(op, start, e.code().intValue());
+        throw e;
       }
     }
     throw exception;
@@ -179,28 +1296,148 @@ public class ZKClientBase implements Watcher {
   private void retryDelay(int attemptCount) {
     if (attemptCount > 0) {
       try {
-        Thread.sleep(attemptCount * retryDelay);
+        Thread.sleep(getBackoffDelay(attemptCount));
       } catch (InterruptedException e) {
         logger.debug("Failed to sleep: " + e, e);
       }
     }
   }
 
+  /**
+   * Registers a watcher for connection state events (events without a path).
+   * @param watcher The watcher
+   */
   public void addWatch(Watcher watcher) {
-    synchronized (watchers) {
-      watchers.add(watcher);
+    watchers.addIfAbsent(watcher);
+  }
+
+  /**
+   * Registers a watcher for the events of a single node.
+   * @param path    The node path
+   * @param watcher The watcher
+   */
+  public void addWatch(String path, Watcher watcher) {
+    CopyOnWriteArrayList<Watcher> listeners = pathWatchers.get(path);
+    if (listeners == null) {
+      CopyOnWriteArrayList<Watcher> created = new CopyOnWriteArrayList<Watcher>();
+      listeners = pathWatchers.putIfAbsent(path, created);
+      if (listeners == null) {
+        listeners = created;
+      }
+    }
+    listeners.addIfAbsent(watcher);
+  }
+
+  /**
+   * Removes a watcher previously registered for a node.
+   * @param path    The node path
+   * @param watcher The watcher
+   */
+  public void removeWatch(String path, Watcher watcher) {
+    CopyOnWriteArrayList<Watcher> listeners = pathWatchers.get(path);
+    if (listeners != null) {
+      listeners.remove(watcher);
+    }
+  }
+
+  /**
+   * Receives the events of a single session and drops them once the session has been
+   * replaced. An expired session is replaced, and the first connection of the new session
+   * re-creates the ephemeral nodes of this client and restores the watches.
+   */
+  private class SessionWatcher implements Watcher {
+    private final int id;
+
+    SessionWatcher(int id) {
+      this.id = id;
+    }
+
+    public void process(WatchedEvent event) {
+      if (id != session.get()) {
+        return;
+      }
+      // Every callback of the session runs on this thread
+      eventThread = Thread.currentThread();
+      if (event.getType() == Event.EventType.None) {
+        if (event.getState() == Event.KeeperState.Expired) {
+          logger.warn(String.format("The session has expired {connection=[%s]}", zkConnection));
+          metrics.recordSessionExpired();
+          ZKClientBase.this.process(event);
+          reconnect(id);
+          return;
+        }
+        if (event.getState() == Event.KeeperState.SyncConnected && restoreWatches) {
+          restoreWatches = false;
+          ZKClientBase.this.process(event);
+          recreateEphemerals();
+          restoreWatches();
+          return;
+        }
+      }
+      ZKClientBase.this.process(event);
     }
   }
-  
+
+  /**
+   * Dispatches node events only to the watchers registered for the node's path;
+   * connection state events are broadcast to the connection watchers.
+   * @param event The event
+   */
   @Override
   public void process(WatchedEvent event) {
-    synchronized (watchers) {
+    String path = event.getPath();
+    if (event.getType() == Event.EventType.None || path == null) {
       for (Watcher w : watchers) {
         w.process(event);
       }
+    } else {
+      List<Watcher> listeners = pathWatchers.get(path);
+      if (listeners != null) {
+        for (Watcher w : listeners) {
+          w.process(event);
+        }
+      }
     }
   }
 
+  /**
+   * An ephemeral node of this client, created again when the session expires.
+   */
+  private static class Ephemeral {
+    final byte[] data;
+    final EphemeralListener listener;
+
+    Ephemeral(byte[] data, EphemeralListener listener) {
+      this.data = data;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * Told when an ephemeral node of this client was lost with an expired session.
+   */
+  public interface EphemeralListener {
+
+    /**
+     * Called on the worker pool when the node could not be created again, usually because
+     * another client holds it now.
+     * @param path  Node name
+     */
+    public void ephemeralLost(String path);
+  }
+
+  /**
+   * Computes the new data of a node from its current data.
+   */
+  public interface DataUpdate {
+
+    /**
+     * @param data  The current node data, or null if the node does not exist
+     * @return The new node data, or null to leave the node as it is
+     */
+    public byte[] apply(byte[] data);
+  }
+
   /**
    *
    */
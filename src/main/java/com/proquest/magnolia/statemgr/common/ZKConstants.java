@@ -14,9 +14,22 @@ public interface ZKConstants {
   public static final String NODE_DESCRIPTION       = "/Description";
   public static final String NODE_TIME_START        = "/Timestamp/Start";
   public static final String NODE_TIME_END          = "/Timestamp/End";
+  public static final String NODE_RECORD            = "/Record";
+  public static final String NODE_FINGERPRINT       = "/Fingerprint";
+  public static final String NODE_CLAIM             = "/Claim";
+  public static final String NODE_MATRIX            = "/Matrix";
+  public static final String NODE_OWNER             = "/Owner";
+  public static final String NODE_DURATION          = "/Duration";
+  public static final String NODE_SPECULATE         = "/Speculate";
+  public static final String NODE_UPDATE_LOCK       = "/UpdateLock";
+
+  public static final String NODE_STAGES            = "/Stages";
+  public static final String NODE_CLIENTS           = "/Clients";
 
   public static final String STATE_IDLE             = "IDLE";
   public static final String STATE_INPROGRESS       = "IN_PROGRESS";
   public static final String STATE_SUCCESS          = "SUCCESS";
   public static final String STATE_ERROR            = "ERROR";
+
+  public static final String TIMESTAMP_FORMAT       = "yyyy-MM-dd HH:mm:ss.SSS";
 }
@@ -0,0 +1,152 @@
+package com.proquest.magnolia.statemgr.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times the ZooKeeper operations and events of a client; registered as the
+ * <code>type=ZooKeeper</code> MBean of the client. Every counter is updated without locks or
+ * allocation on the hot path, except that the first event of a path adds its counter.
+ */
+public class ZKMetrics implements ZKMetricsMXBean {
+
+  /**
+   * The ZooKeeper operation types.
+   */
+  public enum Op { GetData, SetData, Create, Delete, Exists, GetChildren }
+
+  private final ZKClientBase zk;
+  private final LatencyHistogram[] ops = new LatencyHistogram[Op.values().length];
+  private final AtomicLong retries = new AtomicLong(0);
+  private final AtomicLong sessionExpirations = new AtomicLong(0);
+  private final AtomicLong events = new AtomicLong(0);
+  private final ConcurrentMap<String,AtomicLong> pathEvents = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * Constructor.
+   * @param zk  The client whose pools and dispatcher are reported
+   */
+  ZKMetrics(ZKClientBase zk) {
+    this.zk = zk;
+    for (int i = 0; i < ops.length; i++) {
+      ops[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Records the round trip of an operation.
+   * @param op          The operation type
+   * @param startNanos  The <code>System.nanoTime</code> the operation was issued at
+   * @param rc          The ZooKeeper result code; anything but Ok counts as an error
+   */
+  public void record(Op op, long startNanos, int rc) {
+    ops[op.ordinal()].recordSince(startNanos, rc != 0);
+  }
+
+  /**
+   * Counts an operation that failed without a round trip, i.e. that threw.
+   */
+  public void recordError(Op op) {
+    ops[op.ordinal()].recordError();
+  }
+
+  public void recordRetry() {
+    retries.incrementAndGet();
+  }
+
+  void recordSessionExpired() {
+    sessionExpirations.incrementAndGet();
+  }
+
+  /**
+   * Counts a node change delivered to a listener.
+   * @param path  The node path
+   */
+  public void recordEvent(String path) {
+    events.incrementAndGet();
+    AtomicLong count = pathEvents.get(path);
+    if (count == null) {
+      AtomicLong created = new AtomicLong(0);
+      count = pathEvents.putIfAbsent(path, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  public LatencySnapshot getGetData() {
+    return ops[Op.GetData.ordinal()].getSnapshot();
+  }
+
+  public LatencySnapshot getSetData() {
+    return ops[Op.SetData.ordinal()].getSnapshot();
+  }
+
+  public LatencySnapshot getCreate() {
+    return ops[Op.Create.ordinal()].getSnapshot();
+  }
+
+  public LatencySnapshot getDelete() {
+    return ops[Op.Delete.ordinal()].getSnapshot();
+  }
+
+  public LatencySnapshot getExists() {
+    return ops[Op.Exists.ordinal()].getSnapshot();
+  }
+
+  public LatencySnapshot getGetChildren() {
+    return ops[Op.GetChildren.ordinal()].getSnapshot();
+  }
+
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  public long getSessionExpiredCount() {
+    return sessionExpirations.get();
+  }
+
+  public int getInFlight() {
+    return zk.getInFlight();
+  }
+
+  public long getEventCount() {
+    return events.get();
+  }
+
+  public Map<String,Long> getEventCounts() {
+    Map<String,Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String,AtomicLong> entry : pathEvents.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  public int getDispatchQueueDepth() {
+    return zk.getEventDispatcher().getQueueDepth();
+  }
+
+  public long getDispatchRejectedCount() {
+    return zk.getEventDispatcher().getRejectedCount();
+  }
+
+  public LatencySnapshot getDispatchLag() {
+    return zk.getEventDispatcher().getLagHistogram().getSnapshot();
+  }
+
+  public int getSchedulerQueueDepth() {
+    ExecutorService scheduler = zk.getScheduler();
+    return (scheduler instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) scheduler).getQueue().size() : -1;
+  }
+
+  public int getActiveWorkers() {
+    ExecutorService pool = zk.getWorkerPool();
+    return (pool instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) pool).getActiveCount() : -1;
+  }
+}
@@ -0,0 +1,63 @@
+package com.proquest.magnolia.statemgr.common;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the ZooKeeper traffic and event handling of a client or master. Latencies
+ * are round trips in milliseconds; counts only ever grow, so rates are taken by the grapher.
+ */
+public interface ZKMetricsMXBean {
+
+  LatencySnapshot getGetData();
+
+  LatencySnapshot getSetData();
+
+  LatencySnapshot getCreate();
+
+  LatencySnapshot getDelete();
+
+  LatencySnapshot getExists();
+
+  LatencySnapshot getGetChildren();
+
+  /**
+   * @return  The number of operations retried after a connection loss or an expired session
+   */
+  long getRetryCount();
+
+  long getSessionExpiredCount();
+
+  /**
+   * @return  The number of asynchronous operations waiting for ZK
+   */
+  int getInFlight();
+
+  /**
+   * @return  The number of node changes delivered to the listeners
+   */
+  long getEventCount();
+
+  /**
+   * @return  The number of node changes delivered per node path
+   */
+  Map<String,Long> getEventCounts();
+
+  int getDispatchQueueDepth();
+
+  long getDispatchRejectedCount();
+
+  /**
+   * @return  The time events waited in the dispatcher queue before their listener ran
+   */
+  LatencySnapshot getDispatchLag();
+
+  /**
+   * @return  The number of delayed and periodic tasks waiting on the scheduler
+   */
+  int getSchedulerQueueDepth();
+
+  /**
+   * @return  The number of worker pool threads running a task, or -1 if not known
+   */
+  int getActiveWorkers();
+}
@@ -0,0 +1,173 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Limits how many processes run at once on this host. Each process takes up its weight in
+ * slots while it runs; processes that are ready but do not fit wait in a FIFO ready queue
+ * and are started as slots free up.
+ */
+public class AdmissionController implements AdmissionControllerMXBean {
+
+  private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+
+  private int slots;
+  private int usedSlots = 0;
+  private LinkedList<QueuedRunner> readyQueue = new LinkedList<QueuedRunner>();
+  private long admittedCount = 0;
+  private long totalWait = 0;
+  private long maxWait = 0;
+  private volatile Runnable releaseListener = null;
+
+  /**
+   * Constructor.
+   * @param slots The number of slots on this host; 0 or less means unlimited
+   */
+  public AdmissionController(int slots) {
+    this.slots = (slots > 0) ? slots : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Queues the runner and starts it as soon as enough slots are free. Runners that are
+   * already queued or running are ignored.
+   * @param runner  The process runner
+   */
+  public void submit(ProcessRunner runner) {
+    synchronized (this) {
+      if (runner.isRunning() || isQueued(runner)) {
+        return;
+      }
+      readyQueue.add(new QueuedRunner(runner));
+      if (readyQueue.size() > 1 || getWeight(runner) > slots - usedSlots) {
+        logger.info(String.format("Process is waiting for a slot {process=[%s], usedSlots=[%d], slots=[%d]}",
+            runner.getProcess().getNode(), usedSlots, slots));
+      }
+    }
+    admit();
+  }
+
+  /**
+   * Removes the runner from the ready queue if it has not been started yet.
+   * @param runner  The process runner
+   * @return true if the runner was removed
+   */
+  public synchronized boolean cancel(ProcessRunner runner) {
+    for (Iterator<QueuedRunner> it = readyQueue.iterator(); it.hasNext();) {
+      if (it.next().runner == runner) {
+        it.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Frees the slots held by a finished runner and starts whatever fits next.
+   * @param runner  The process runner
+   */
+  public void release(ProcessRunner runner) {
+    synchronized (this) {
+      usedSlots -= getWeight(runner);
+    }
+    admit();
+    Runnable listener = releaseListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Sets a callback that is run, without holding any lock, whenever a runner has freed its slots.
+   * @param listener  The callback, or null
+   */
+  public void setReleaseListener(Runnable listener) {
+    this.releaseListener = listener;
+  }
+
+  /**
+   * Starts queued runners, in order, while the one at the head of the queue fits.
+   */
+  private void admit() {
+    while (true) {
+      QueuedRunner next;
+      long wait;
+      synchronized (this) {
+        next = readyQueue.peek();
+        if (next == null || getWeight(next.runner) > slots - usedSlots) {
+          return;
+        }
+        readyQueue.poll();
+        usedSlots += getWeight(next.runner);
+        wait = System.currentTimeMillis() - next.queuedAt;
+        admittedCount++;
+        totalWait += wait;
+        maxWait = Math.max(maxWait, wait);
+      }
+      logger.info(String.format("Process admitted {process=[%s], queueWaitMs=[%d]}", next.runner.getProcess().getNode(), wait));
+      if (!next.runner.startProcess(this)) {
+        release(next.runner);
+      }
+    }
+  }
+
+  private boolean isQueued(ProcessRunner runner) {
+    for (QueuedRunner qr : readyQueue) {
+      if (qr.runner == runner) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return  The slots taken by the runner, never more than the host has
+   */
+  private int getWeight(ProcessRunner runner) {
+    return Math.min(Math.max(runner.getProcess().getWeight(), 0), slots);
+  }
+
+  public int getSlots() {
+    return slots;
+  }
+
+  public synchronized int getUsedSlots() {
+    return usedSlots;
+  }
+
+  public synchronized int getQueueLength() {
+    return readyQueue.size();
+  }
+
+  public synchronized long getAdmittedCount() {
+    return admittedCount;
+  }
+
+  /**
+   * @return  The average time processes waited for a slot, in milliseconds
+   */
+  public synchronized double getAverageQueueWait() {
+    return (admittedCount > 0) ? (double) totalWait / admittedCount : 0.0;
+  }
+
+  /**
+   * @return  The longest time a process waited for a slot, in milliseconds
+   */
+  public synchronized long getMaxQueueWait() {
+    return maxWait;
+  }
+
+  /**
+   * A runner and the time it became ready.
+   */
+  private static class QueuedRunner {
+    final ProcessRunner runner;
+    final long queuedAt = System.currentTimeMillis();
+
+    QueuedRunner(ProcessRunner runner) {
+      this.runner = runner;
+    }
+  }
+}
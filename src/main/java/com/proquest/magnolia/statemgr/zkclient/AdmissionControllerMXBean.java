@@ -0,0 +1,25 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+/**
+ * The JMX view of the slots of a client host.
+ */
+public interface AdmissionControllerMXBean {
+
+  /**
+   * @return  The number of slots on this host; Integer.MAX_VALUE if unlimited
+   */
+  int getSlots();
+
+  int getUsedSlots();
+
+  /**
+   * @return  The number of ready processes waiting for a slot
+   */
+  int getQueueLength();
+
+  long getAdmittedCount();
+
+  double getAverageQueueWait();
+
+  long getMaxQueueWait();
+}
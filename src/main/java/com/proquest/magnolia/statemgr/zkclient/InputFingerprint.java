@@ -0,0 +1,109 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Computes a SHA-1 fingerprint of the declared inputs of a process: its command line, the
+ * environment variables it reads and the files and directories (recursively) it reads.
+ * By default a file contributes its path, size and modification time; with the
+ * <code>statemgr.fingerprint.content</code> system property set its content is hashed instead.
+ */
+public class InputFingerprint {
+
+  private static final boolean HASH_CONTENT = Boolean.getBoolean("statemgr.fingerprint.content");
+
+  private MessageDigest digest;
+  private byte[] buffer = null;
+
+  private InputFingerprint() {
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param proc  The process
+   * @return The fingerprint of the process inputs as a hex string
+   * @throws IOException  If an input file cannot be read
+   */
+  public static String compute(ZKProcess proc) throws IOException {
+    InputFingerprint fp = new InputFingerprint();
+    fp.add("cmd", proc.getProcessPath() + " " + proc.getArgs());
+    if (proc.runsInJvm()) {
+      fp.add("main", proc.getMainClass() + " " + proc.getClasspath());
+    }
+    for (String name : proc.getInputEnv()) {
+      String value = System.getenv(name);
+      fp.add("env", name + "=" + ((value != null) ? value : ""));
+    }
+    for (String file : proc.getInputFiles()) {
+      fp.addFile(new File(file));
+    }
+    for (String dir : proc.getInputDirs()) {
+      fp.addDir(new File(dir));
+    }
+    return fp.toHex();
+  }
+
+  private void add(String kind, String value) {
+    digest.update(ZKClientBase.encode(kind + ":" + value + "\n"));
+  }
+
+  private void addDir(File dir) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      add("missing", dir.getPath());
+      return;
+    }
+    // Sorted so the fingerprint does not depend on the listing order
+    Arrays.sort(children);
+    add("dir", dir.getPath());
+    for (File child : children) {
+      if (child.isDirectory()) {
+        addDir(child);
+      } else {
+        addFile(child);
+      }
+    }
+  }
+
+  private void addFile(File file) throws IOException {
+    if (!file.isFile()) {
+      add("missing", file.getPath());
+    } else if (!HASH_CONTENT) {
+      add("file", file.getPath() + " " + file.length() + " " + file.lastModified());
+    } else {
+      add("file", file.getPath());
+      if (buffer == null) {
+        buffer = new byte[64 * 1024];
+      }
+      InputStream is = new FileInputStream(file);
+      try {
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          digest.update(buffer, 0, n);
+        }
+      } finally {
+        is.close();
+      }
+    }
+  }
+
+  private String toHex() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+}
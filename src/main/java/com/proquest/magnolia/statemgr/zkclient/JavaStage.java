@@ -0,0 +1,361 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Runs a Java process inside the client JVM instead of launching a new JVM for it.
+ * The main class is loaded from the classpath of the process in its own class loader, whose
+ * parent is the extension class loader, so the stage does not see the client's classes or
+ * libraries. Loaders are kept per classpath, so later runs of a stage reuse classes that are
+ * already loaded and compiled; static state of the stage survives between runs as a result.
+ * A loader is replaced, and closed once no run uses it, when a classpath entry is modified or
+ * the main class fails to initialise, so a fixed or redeployed stage is picked up.
+ *
+ * The exit code contract:
+ * <ul>
+ *   <li>if the main class has a <code>public static int run(String[])</code> method its result
+ *   is the exit code, otherwise <code>main(String[])</code> is called and returning is 0</li>
+ *   <li>an exception thrown by the stage is printed to its output and is exit code 1</li>
+ *   <li>a call to <code>System.exit</code> from the stage ends the stage, not the client, with
+ *   its status as the exit code</li>
+ * </ul>
+ * The exit is trapped with a security manager; where the JVM no longer allows one
+ * {@link #isAvailable()} is false and the stage must be run in a JVM of its own.
+ * <code>System.out</code> and <code>System.err</code> written by the stage thread, and by any
+ * thread it starts, are routed to the stage output. The stage is cancelled by interrupting it.
+ */
+class JavaStage {
+
+  private static final Logger logger = Logger.getLogger(JavaStage.class.getName());
+
+  private static final Map<String,Loader> loaders = new HashMap<String, Loader>();
+  private static final InheritableThreadLocal<OutputStream> target = new InheritableThreadLocal<OutputStream>();
+  private static boolean installed = false;
+  private static boolean exitTrapped = false;
+
+  private ZKProcess zkProc;
+  private String[] args;
+  private OutputStream sink;
+  private InputStream output;
+  private volatile Thread thread = null;
+
+  /**
+   * Thrown in place of exiting the JVM when a stage calls <code>System.exit</code>.
+   */
+  static class ExitTrappedException extends SecurityException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    ExitTrappedException(int status) {
+      super("System.exit(" + status + ") called by an in-JVM stage");
+      this.status = status;
+    }
+  }
+
+  /**
+   * The class loader of a classpath, with the modification time of its entries when it was created.
+   */
+  private static class Loader {
+    final String classpath;
+    final URLClassLoader loader;
+    final long modified;
+    int users = 0;
+    boolean evicted = false;
+
+    Loader(String classpath, URLClassLoader loader, long modified) {
+      this.classpath = classpath;
+      this.loader = loader;
+      this.modified = modified;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param zkProcess The Java process; its main class and classpath must be set
+   * @param args      The process arguments
+   */
+  JavaStage(ZKProcess zkProcess, List<String> args) throws IOException {
+    this.zkProc = zkProcess;
+    this.args = args.toArray(new String[args.size()]);
+    Pipe pipe = Pipe.open();
+    this.sink = Channels.newOutputStream(pipe.sink());
+    this.output = Channels.newInputStream(pipe.source());
+  }
+
+  /**
+   * @return  true if a stage calling <code>System.exit</code> can be kept from ending the client,
+   *          so stages may run in this JVM
+   */
+  static boolean isAvailable() {
+    return install();
+  }
+
+  /**
+   * @return  The stage output, which ends once the stage has finished
+   */
+  InputStream getOutput() {
+    return output;
+  }
+
+  /**
+   * Runs the stage on the calling thread.
+   * @return The exit code
+   */
+  int run() {
+    ClassLoader previous = Thread.currentThread().getContextClassLoader();
+    PrintStream out = new PrintStream(sink, true);
+    thread = Thread.currentThread();
+    target.set(sink);
+    Loader loader = null;
+    try {
+      loader = acquireLoader(zkProc.getClasspath());
+      Thread.currentThread().setContextClassLoader(loader.loader);
+      Class<?> mainClass;
+      try {
+        mainClass = Class.forName(zkProc.getMainClass(), true, loader.loader);
+      } catch (ExceptionInInitializerError e) {
+        // The class can never be used from this loader again
+        evict(loader);
+        Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+        if (cause instanceof ExitTrappedException) {
+          // System.exit from a static initializer
+          return ((ExitTrappedException) cause).status;
+        }
+        cause.printStackTrace(out);
+        return 1;
+      } catch (LinkageError e) {
+        evict(loader);
+        throw e;
+      }
+      Method run = getEntryPoint(mainClass, "run", int.class);
+      if (run != null) {
+        return (Integer) run.invoke(null, (Object) args);
+      }
+      Method main = getEntryPoint(mainClass, "main", void.class);
+      if (main == null) {
+        out.println("No public static main(String[]) or int run(String[]) in " + zkProc.getMainClass());
+        return 1;
+      }
+      main.invoke(null, (Object) args);
+      return 0;
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ExitTrappedException) {
+        return ((ExitTrappedException) cause).status;
+      }
+      cause.printStackTrace(out);
+      return 1;
+    } catch (Throwable t) {
+      logger.error(String.format("Unable to run the main class {process=[%s], mainClass=[%s]}",
+          zkProc.getProcessPath(), zkProc.getMainClass()), t);
+      t.printStackTrace(out);
+      return 1;
+    } finally {
+      if (loader != null) {
+        releaseLoader(loader);
+      }
+      target.remove();
+      thread = null;
+      Thread.currentThread().setContextClassLoader(previous);
+      // Leave the worker thread as we found it if the stage was cancelled
+      Thread.interrupted();
+      out.close();
+    }
+  }
+
+  /**
+   * Interrupts the stage. Stages that do not respond to interrupts keep running until they return.
+   */
+  void cancel() {
+    Thread t = thread;
+    if (t != null) {
+      logger.info(String.format("Interrupting in-JVM stage {process=[%s], thread=[%s]}", zkProc.getProcessPath(), t.getName()));
+      t.interrupt();
+    }
+  }
+
+  private static Method getEntryPoint(Class<?> mainClass, String name, Class<?> returnType) {
+    try {
+      Method m = mainClass.getMethod(name, String[].class);
+      if (Modifier.isStatic(m.getModifiers()) && m.getReturnType() == returnType) {
+        return m;
+      }
+    } catch (NoSuchMethodException e) {
+    }
+    return null;
+  }
+
+  /**
+   * Gets the loader of the classpath for a run, replacing it if a classpath entry was modified since it was created.
+   */
+  private static Loader acquireLoader(String classpath) throws MalformedURLException {
+    List<File> files = new ArrayList<File>();
+    StringTokenizer st = new StringTokenizer(classpath, File.pathSeparator);
+    while (st.hasMoreTokens()) {
+      files.add(new File(st.nextToken().trim()));
+    }
+    long modified = 0;
+    for (File file : files) {
+      modified = Math.max(modified, file.lastModified());
+    }
+    synchronized (loaders) {
+      Loader loader = loaders.get(classpath);
+      if (loader != null && loader.modified != modified) {
+        logger.info(String.format("Classpath modified, replacing the class loader of in-JVM stages {classpath=[%s]}", classpath));
+        evict(loader);
+        loader = null;
+      }
+      if (loader == null) {
+        List<URL> urls = new ArrayList<URL>();
+        for (File file : files) {
+          urls.add(file.toURI().toURL());
+        }
+        loader = new Loader(classpath, new URLClassLoader(urls.toArray(new URL[urls.size()]),
+            ClassLoader.getSystemClassLoader().getParent()), modified);
+        loaders.put(classpath, loader);
+        logger.info(String.format("Created class loader for in-JVM stages {classpath=[%s]}", classpath));
+      }
+      loader.users++;
+      return loader;
+    }
+  }
+
+  private static void releaseLoader(Loader loader) {
+    synchronized (loaders) {
+      loader.users--;
+      closeIfUnused(loader);
+    }
+  }
+
+  /**
+   * Stops handing out a loader to new runs; it is closed once the runs using it have finished.
+   */
+  private static void evict(Loader loader) {
+    synchronized (loaders) {
+      if (loaders.get(loader.classpath) == loader) {
+        loaders.remove(loader.classpath);
+      }
+      loader.evicted = true;
+      closeIfUnused(loader);
+    }
+  }
+
+  private static void closeIfUnused(Loader loader) {
+    if (!loader.evicted || loader.users > 0) {
+      return;
+    }
+    // URLClassLoader is only Closeable from Java 7 on
+    if (loader.loader instanceof Closeable) {
+      try {
+        ((Closeable) loader.loader).close();
+      } catch (IOException e) {
+        logger.warn(String.format("Unable to close the class loader of in-JVM stages {classpath=[%s]}", loader.classpath), e);
+      }
+    }
+  }
+
+  /**
+   * Routes the standard streams per thread and traps <code>System.exit</code> from stages, once.
+   * @return  true if <code>System.exit</code> is trapped
+   */
+  private static synchronized boolean install() {
+    if (installed) {
+      return exitTrapped;
+    }
+    installed = true;
+    System.setOut(new PrintStream(new RoutingOutputStream(System.out), true));
+    System.setErr(new PrintStream(new RoutingOutputStream(System.err), true));
+    try {
+      final SecurityManager parent = System.getSecurityManager();
+      System.setSecurityManager(new SecurityManager() {
+        @Override
+        public void checkPermission(Permission perm) {
+          if (parent != null) {
+            parent.checkPermission(perm);
+          }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+          if (parent != null) {
+            parent.checkPermission(perm, context);
+          }
+        }
+
+        @Override
+        public void checkExit(int status) {
+          if (target.get() != null) {
+            throw new ExitTrappedException(status);
+          }
+          super.checkExit(status);
+        }
+      });
+      exitTrapped = true;
+    } catch (UnsupportedOperationException e) {
+      logger.warn("Unable to trap System.exit; Java stages will run in a JVM of their own");
+    } catch (SecurityException e) {
+      logger.warn("Unable to trap System.exit; Java stages will run in a JVM of their own");
+    }
+    return exitTrapped;
+  }
+
+  /**
+   * Writes to the output of the stage running on the current thread, if any, and otherwise
+   * to the original stream. Output written after the stage has finished is dropped.
+   */
+  private static class RoutingOutputStream extends OutputStream {
+    private final OutputStream original;
+
+    RoutingOutputStream(OutputStream original) {
+      this.original = original;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      OutputStream os = target.get();
+      if (os == null) {
+        original.write(b, off, len);
+        return;
+      }
+      try {
+        os.write(b, off, len);
+      } catch (IOException e) {
+        // The stage has finished
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (target.get() == null) {
+        original.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proquest.magnolia.statemgr.common.DataMonitor;
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins the instances of a matrix stage: the state of the matrix stage node is the aggregate of
+ * the states of its instances, so downstream stages simply depend on the matrix stage. It is
+ * IN_PROGRESS once any instance has started, SUCCESS once all instances have succeeded and ERROR
+ * once all have finished and any has failed.
+ *
+ * The matrix values are published in the <code>/Matrix</code> node of the stage, from which the
+ * master learns which instances to reset along with the stage. The join only aggregates once it
+ * has seen the stage reset to IDLE, and then re-reads every instance, so the states left over from
+ * the previous run are never taken for the results of this one.
+ *
+ * Every client running the stage starts a join, but only the one holding the ephemeral
+ * <code>/Owner</code> node of the stage writes it; the others wait for the node to go away and
+ * then take over, reading the stage and its instances again. The owner node also tells the
+ * {@link com.proquest.magnolia.statemgr.common.LivenessMonitor} that the stage is looked after.
+ * The aggregate is written only if the stage is still in the state the join last saw, so a
+ * join that has lost the node never overwrites its successor.
+ */
+public class MatrixJoin implements DataMonitor.DataMonitorListener, Watcher, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(MatrixJoin.class.getName());
+
+  private ZKClientBase zk;
+  private StageStore store;
+  private ZKProcess zkProc;
+  private String stateNode;
+  private String ownerNode;
+  private Map<String,String> instanceNodes = new LinkedHashMap<String, String>();
+  private Map<String,String> instanceStates = new LinkedHashMap<String, String>();
+  private String state = "";
+  private String stored = "";
+  private boolean armed = false;
+  private int lastFinished = -1;
+  private Map<String,String> unwritten = new LinkedHashMap<String, String>();
+  private boolean writing = false;
+  private volatile boolean locked = false;
+  private boolean leading = false;
+  private volatile DataMonitor dm;
+
+  /**
+   * Constructor.
+   * @param zk      ZKClient reference
+   * @param zkProc  The matrix stage
+   */
+  public MatrixJoin(ZKClientBase zk, ZKProcess zkProc) {
+    this.zk = zk;
+    this.store = new StageStore(zk);
+    this.zkProc = zkProc;
+    this.stateNode = store.getNode(zkProc.getNode(), NODE_STATE);
+    this.ownerNode = zkProc.getNode() + NODE_OWNER;
+    for (String value : zkProc.getMatrix()) {
+      String instance = zkProc.getNode() + "/" + value;
+      instanceNodes.put(store.getNode(instance, NODE_STATE), instance);
+    }
+  }
+
+  /**
+   * Tries to take the owner node of the stage, and waits for it to go away if another client
+   * holds it. Returns without waiting.
+   */
+  public void start() {
+    logger.info(String.format("MatrixJoin is starting {node=[%s], instances=[%d]}", zkProc.getNode(), instanceNodes.size()));
+    zk.addWatch(ownerNode, this);
+    lock();
+  }
+
+  /**
+   * Creates the owner node of the stage, or watches it if another client holds it.
+   */
+  private void lock() {
+    if (locked) {
+      return;
+    }
+    final byte[] owner = ProcessRunner.getOwnerData(getCurrentDateTime());
+    zk.getZookeeper().create(ownerNode, owner, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL,
+        new AsyncCallback.StringCallback() {
+          public void processResult(int rc, String path, Object ctx, String name) {
+            switch (KeeperException.Code.get(rc)) {
+              case OK:
+                locked = true;
+                zk.ownEphemeral(ownerNode, owner, new ZKClientBase.EphemeralListener() {
+                  public void ephemeralLost(String path) {
+                    unlocked();
+                  }
+                });
+                // Issues asynchronous operations, which must not be issued from the event thread
+                zk.getWorkerPool().execute(new Runnable() {
+                  public void run() {
+                    lead();
+                  }
+                });
+                break;
+              case NODEEXISTS:
+                zk.getZookeeper().exists(ownerNode, true, new AsyncCallback.StatCallback() {
+                  public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    if (rc == KeeperException.Code.OK.intValue() && stat == null) {
+                      // Gone in the meantime
+                      lock();
+                    }
+                  }
+                }, null);
+                break;
+              case NONODE:
+                // The stage node does not exist yet
+                zk.getWorkerPool().execute(new Runnable() {
+                  public void run() {
+                    zk.ensurePathExists(zkProc.getNode());
+                    lock();
+                  }
+                });
+                break;
+              default:
+                zk.getScheduler().schedule(new Runnable() {
+                  public void run() {
+                    lock();
+                  }
+                }, zk.getRetryDelay(), TimeUnit.MILLISECONDS);
+            }
+          }
+        }, null);
+  }
+
+  /**
+   * Tries to take over when the owner node changes or goes away, and after the session has
+   * been re-established.
+   * @param event The event
+   */
+  public void process(WatchedEvent event) {
+    if (event.getType() != Event.EventType.None && ownerNode.equals(event.getPath())) {
+      lock();
+    }
+  }
+
+  /**
+   * Stops writing the stage once another client holds the owner node, and waits for it again.
+   */
+  private void unlocked() {
+    synchronized (this) {
+      locked = false;
+      leading = false;
+      armed = false;
+      unwritten.clear();
+    }
+    logger.warn(String.format("Another client joins the matrix stage now {node=[%s]}", zkProc.getNode()));
+    lock();
+  }
+
+  /**
+   * Publishes the matrix values, reads the current states and starts monitoring the stage and
+   * its instances, once this client holds the owner node.
+   */
+  private void lead() {
+    logger.info(String.format("Joining the matrix stage {node=[%s]}", zkProc.getNode()));
+    StringBuilder values = new StringBuilder();
+    for (String value : zkProc.getMatrix()) {
+      values.append((values.length() > 0) ? "," : "").append(value);
+    }
+    zk.setDataAsync(zkProc.getNode() + NODE_MATRIX, values.toString());
+    read();
+  }
+
+  /**
+   * Reads the stage and every instance, and then aggregates; instances that do not exist yet
+   * are created IDLE. The monitoring starts after the first read.
+   */
+  private void read() {
+    final List<String> znodes = new ArrayList<String>();
+    znodes.add(stateNode);
+    znodes.addAll(instanceNodes.keySet());
+    final ListenableFuture<List<String>> states = zk.getDataAsync(znodes);
+    states.addListener(new Runnable() {
+      public void run() {
+        try {
+          init(znodes, ZKClientBase.waitFor(states));
+        } catch (Exception e) {
+          logger.error(String.format("Unable to read the matrix states, retrying {node=[%s]}", zkProc.getNode()), e);
+          zk.getScheduler().schedule(new Runnable() {
+            public void run() {
+              if (locked) {
+                read();
+              }
+            }
+          }, zk.getRetryDelay(), TimeUnit.MILLISECONDS);
+        }
+        if (dm == null) {
+          dm = new DataMonitor(zk, znodes, MatrixJoin.this);
+        }
+      }
+    }, zk.getWorkerPool());
+  }
+
+  private synchronized void init(List<String> znodes, List<String> data) {
+    if (!locked) {
+      return;
+    }
+    state = store.getField(stateNode, data.get(0), NODE_STATE);
+    stored = state;
+    // Mid-run (i.e. the client was restarted or took over) the instances are current, so aggregate right away
+    armed = STATE_IDLE.equals(state) || STATE_INPROGRESS.equals(state);
+    for (int i = 1; i < znodes.size(); i++) {
+      String instanceState = store.getField(znodes.get(i), data.get(i), NODE_STATE);
+      String instance = instanceNodes.get(znodes.get(i));
+      if (instanceState.length() == 0) {
+        // Created here the first time; the master resets it from then on
+        logger.info(String.format("Creating matrix instance {node=[%s]}", instance));
+        Map<String,String> fields = new LinkedHashMap<String, String>();
+        fields.put(NODE_DESCRIPTION, zkProc.getNode() + " " + instance.substring(zkProc.getNode().length() + 1));
+        fields.put(NODE_STATE, STATE_IDLE);
+        store.update(instance, fields);
+        instanceState = STATE_IDLE;
+      }
+      instanceStates.put(instance, instanceState);
+    }
+    leading = true;
+    lastFinished = -1;
+    aggregate();
+  }
+
+  public void closing(int rc) {
+    logger.info(String.format("MatrixJoin is dead {node=[%s]}", zkProc.getNode()));
+  }
+
+  /**
+   * Called by the DataMonitor when the stage or one of its instances changes.
+   * @param path  The node path
+   * @param data  The node data
+   */
+  public synchronized void exists(String path, String data) {
+    if (data == null) {
+      return;
+    }
+    String s = store.getField(path, data, NODE_STATE);
+    if (stateNode.equals(path)) {
+      boolean reset = STATE_IDLE.equals(s) && !STATE_IDLE.equals(state);
+      state = s;
+      if (!writing) {
+        stored = s;
+      }
+      if (reset && leading) {
+        rearm();
+      }
+    } else if (instanceNodes.containsKey(path)) {
+      instanceStates.put(instanceNodes.get(path), s);
+      aggregate();
+    }
+  }
+
+  /**
+   * Re-reads the instances after the stage has been reset and then starts aggregating again.
+   */
+  private void rearm() {
+    armed = false;
+    final List<String> znodes = new ArrayList<String>(instanceNodes.keySet());
+    final ListenableFuture<List<String>> states = zk.getDataAsync(znodes);
+    states.addListener(new Runnable() {
+      public void run() {
+        try {
+          List<String> data = ZKClientBase.waitFor(states);
+          synchronized (MatrixJoin.this) {
+            if (!leading) {
+              return;
+            }
+            for (int i = 0; i < znodes.size(); i++) {
+              instanceStates.put(instanceNodes.get(znodes.get(i)), store.getField(znodes.get(i), data.get(i), NODE_STATE));
+            }
+            armed = true;
+            lastFinished = -1;
+            aggregate();
+          }
+        } catch (Exception e) {
+          logger.error(String.format("Unable to read the matrix instances {node=[%s]}", zkProc.getNode()), e);
+        }
+      }
+    }, zk.getWorkerPool());
+  }
+
+  /**
+   * Writes the aggregate state of the instances to the stage, when it has changed.
+   */
+  private void aggregate() {
+    if (!armed || !leading) {
+      return;
+    }
+    int succeeded = 0;
+    int failed = 0;
+    int started = 0;
+    for (String s : instanceStates.values()) {
+      if (STATE_SUCCESS.equals(s)) {
+        succeeded++;
+      } else if (STATE_ERROR.equals(s)) {
+        failed++;
+      } else if (STATE_INPROGRESS.equals(s)) {
+        started++;
+      }
+    }
+    int total = instanceStates.size();
+    int finished = succeeded + failed;
+    if (finished == lastFinished && !(started > 0 && STATE_IDLE.equals(state))) {
+      return;
+    }
+    lastFinished = finished;
+
+    Map<String,String> fields = new LinkedHashMap<String, String>();
+    if (STATE_IDLE.equals(state) && started + finished > 0) {
+      fields.put(NODE_TIME_START, getCurrentDateTime());
+      state = STATE_INPROGRESS;
+      fields.put(NODE_STATE, state);
+    }
+    if (finished == total) {
+      fields.put(NODE_STATE_INFO, String.format("%d of %d instances succeeded", succeeded, total));
+      fields.put(NODE_TIME_END, getCurrentDateTime());
+      state = (failed > 0) ? STATE_ERROR : STATE_SUCCESS;
+      fields.put(NODE_STATE, state);
+      armed = false;
+      logger.info(String.format("Matrix stage finished {node=[%s], state=[%s], failed=[%d]}", zkProc.getNode(), state, failed));
+    } else if (STATE_INPROGRESS.equals(state)) {
+      fields.put(NODE_STATE_INFO, String.format("%d of %d instances finished", finished, total));
+    }
+    write(fields);
+  }
+
+  /**
+   * Writes the fields to the stage. Record updates of the same node may complete out of order,
+   * so a write is only issued once the previous one has completed; fields set in the meantime
+   * are merged, later values (and the state) last.
+   */
+  private void write(Map<String,String> fields) {
+    for (Map.Entry<String,String> field : fields.entrySet()) {
+      unwritten.remove(field.getKey());
+      unwritten.put(field.getKey(), field.getValue());
+    }
+    if (!writing) {
+      flush();
+    }
+  }
+
+  /**
+   * Issues the merged fields, if the stage is still in the state last read or written by this
+   * join. If it is not, the stage was reset or written elsewhere, so it is read again.
+   */
+  private synchronized void flush() {
+    if (unwritten.isEmpty() || !leading) {
+      writing = false;
+      return;
+    }
+    writing = true;
+    final Map<String,String> fields = unwritten;
+    unwritten = new LinkedHashMap<String, String>();
+    if (!fields.containsKey(NODE_STATE)) {
+      fields.put(NODE_STATE, stored);
+    }
+    final ListenableFuture<Boolean> future = store.updateIf(zkProc.getNode(), stored, fields);
+    future.addListener(new Runnable() {
+      public void run() {
+        boolean applied = false;
+        try {
+          applied = ZKClientBase.waitFor(future);
+        } catch (Exception e) {
+          logger.warn(String.format("Unable to write the matrix stage {node=[%s]}", zkProc.getNode()), e);
+        }
+        synchronized (MatrixJoin.this) {
+          if (applied) {
+            stored = fields.get(NODE_STATE);
+          } else if (leading) {
+            logger.info(String.format("Matrix stage changed elsewhere, reading it again {node=[%s]}", zkProc.getNode()));
+            unwritten.clear();
+            read();
+          }
+        }
+        flush();
+      }
+    }, zk.getWorkerPool());
+  }
+
+  private static String getCurrentDateTime() {
+    return new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+  }
+}
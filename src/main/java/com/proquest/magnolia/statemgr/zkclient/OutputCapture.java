@@ -0,0 +1,256 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Captures the output of a child process. The complete output is spilled to a rotating
+ * per-stage log file while only the last few lines are kept in memory, in a fixed ring
+ * of reusable line buffers, so long running stages do not grow the heap.
+ */
+public class OutputCapture implements Runnable {
+
+  private static final Logger logger = Logger.getLogger(OutputCapture.class.getName());
+
+  private static final String LOG_DIR       = System.getProperty("statemgr.capture.dir", "./logs");
+  private static final int RING_LINES       = Integer.getInteger("statemgr.capture.lines", 100);
+  private static final int MAX_LINE_LENGTH  = Integer.getInteger("statemgr.capture.lineLength", 1024);
+  private static final long MAX_FILE_SIZE   = Long.getLong("statemgr.capture.fileSize", 10L * 1024 * 1024);
+  private static final int MAX_FILES        = Integer.getInteger("statemgr.capture.files", 5);
+  private static final int BUFFER_SIZE      = 8192;
+  private static final ProcessMetrics metrics = ProcessMetrics.get();
+
+  private InputStream is;
+  private File logFile;
+  private boolean append;
+  private FileChannel spill = null;
+  private long spillSize = 0;
+  private volatile long bytesRead = 0;
+
+  private StringBuilder[] ring = new StringBuilder[RING_LINES];
+  private int head = 0;
+  private long lineCount = 0;
+
+  /**
+   * Constructor.
+   * @param is    The process output stream
+   * @param node  The node of the process; used to name the log file
+   */
+  public OutputCapture(InputStream is, String node) {
+    this(is, node, false);
+  }
+
+  /**
+   * Constructor.
+   * @param is      The process output stream
+   * @param node    The node of the process; used to name the log file
+   * @param append  If true the output is appended to the current log file of the node
+   *                instead of starting a new one
+   */
+  public OutputCapture(InputStream is, String node, boolean append) {
+    this.is = is;
+    this.append = append;
+    this.logFile = new File(LOG_DIR, getLogFileName(node));
+    for (int i = 0; i < ring.length; i++) {
+      ring[i] = new StringBuilder(80);
+    }
+  }
+
+  private static String getLogFileName(String node) {
+    String name = node.startsWith("/") ? node.substring(1) : node;
+    return name.replace('/', '_') + ".log";
+  }
+
+  /**
+   * Reads the stream until the process closes it.
+   */
+  public void run() {
+    ReadableByteChannel in = Channels.newChannel(is);
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    try {
+      openSpill();
+      // The bytes of a character split across reads are carried over to the next read; they
+      // have already been spilled and counted
+      int carried = 0;
+      while (in.read(bytes) != -1) {
+        bytes.flip();
+        int fresh = bytes.remaining() - carried;
+        bytesRead += fresh;
+        metrics.recordOutput(fresh);
+        bytes.position(carried);
+        spill(bytes);
+        bytes.position(0);
+        decoder.decode(bytes, chars, false);
+        chars.flip();
+        append(chars);
+        chars.clear();
+        bytes.compact();
+        carried = bytes.position();
+      }
+      // Decode whatever is left, so the last partial line is kept
+      bytes.flip();
+      decoder.decode(bytes, chars, true);
+      decoder.flush(chars);
+      chars.flip();
+      append(chars);
+    } catch (IOException e) {
+      logger.debug(String.format("Output capture ended {file=[%s]}", logFile), e);
+    } finally {
+      closeSpill();
+    }
+  }
+
+  /**
+   * Splits the decoded characters into lines in the ring. Lines longer than the
+   * maximum line length are truncated in memory (but not in the log file).
+   */
+  private synchronized void append(CharBuffer chars) {
+    while (chars.hasRemaining()) {
+      char c = chars.get();
+      StringBuilder line = ring[head];
+      if (c == '\n') {
+        if (isIgnored(line)) {
+          line.setLength(0);
+        } else {
+          head = (head + 1) % ring.length;
+          ring[head].setLength(0);
+          lineCount++;
+        }
+      } else if (c != '\r' && line.length() < MAX_LINE_LENGTH) {
+        line.append(c);
+      }
+    }
+  }
+
+  /**
+   * The "mes" lines output by the shell environment are not of interest.
+   */
+  private static boolean isIgnored(StringBuilder line) {
+    return line.length() == 3 && line.charAt(0) == 'm' && line.charAt(1) == 'e' && line.charAt(2) == 's';
+  }
+
+  /**
+   * @return  The number of complete lines read so far
+   */
+  public synchronized long getLineCount() {
+    return lineCount;
+  }
+
+  /**
+   * @return  The total number of bytes read so far
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Returns the last complete lines of output.
+   * @param lines The maximum number of lines to return
+   * @return  The lines separated by newlines
+   */
+  public synchronized String getTail(int lines) {
+    int n = (int) Math.min(Math.min(lines, lineCount), ring.length - 1);
+    StringBuilder sb = new StringBuilder();
+    for (int i = n; i > 0; i--) {
+      if (sb.length() > 0) {
+        sb.append('\n');
+      }
+      sb.append(ring[(head - i + ring.length) % ring.length]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return  The last line of output, including any unterminated remainder.
+   */
+  public synchronized String getLastOutput() {
+    return (ring[head].length() > 0) ? ring[head].toString() : getTail(1);
+  }
+
+  public File getLogFile() {
+    return logFile;
+  }
+
+  /**
+   * Opens a fresh log file for this run, rotating out the previous ones, unless appending.
+   */
+  private void openSpill() {
+    try {
+      logFile.getParentFile().mkdirs();
+      if (!append && logFile.length() > 0) {
+        rotate();
+      }
+      spill = new FileOutputStream(logFile, true).getChannel();
+      spillSize = spill.size();
+    } catch (IOException e) {
+      logger.warn(String.format("Unable to open the output log file {file=[%s]}", logFile), e);
+      spill = null;
+    }
+  }
+
+  private void spill(ByteBuffer bytes) {
+    if (spill == null) {
+      return;
+    }
+    int pos = bytes.position();
+    try {
+      if (spillSize >= MAX_FILE_SIZE) {
+        spill.close();
+        rotate();
+        spill = new FileOutputStream(logFile, true).getChannel();
+        spillSize = 0;
+      }
+      while (bytes.hasRemaining()) {
+        spillSize += spill.write(bytes);
+      }
+      metrics.recordOutputWrite();
+    } catch (IOException e) {
+      logger.warn(String.format("Unable to write the output log file {file=[%s]}", logFile), e);
+      closeSpill();
+    } finally {
+      bytes.position(pos);
+    }
+  }
+
+  private void closeSpill() {
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException e) {
+      }
+      spill = null;
+    }
+  }
+
+  /**
+   * Shifts name.log to name.log.1, name.log.1 to name.log.2 and so on, dropping the oldest.
+   */
+  private void rotate() {
+    File oldest = new File(logFile.getPath() + "." + (MAX_FILES - 1));
+    if (oldest.exists() && !oldest.delete()) {
+      logger.warn(String.format("Unable to delete the output log file {file=[%s]}", oldest));
+    }
+    for (int i = MAX_FILES - 2; i >= 0; i--) {
+      File from = (i == 0) ? logFile : new File(logFile.getPath() + "." + i);
+      if (from.exists()) {
+        from.renameTo(new File(logFile.getPath() + "." + (i + 1)));
+      }
+    }
+  }
+}
@@ -9,6 +9,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,9 +19,11 @@ import java.util.List;
 public class ProcessFileReader {
 
   private List<ZKProcess> zkProcesses = new ArrayList<ZKProcess>();
+  private int slots = 0;
   private ZKProcess currProc = null;
   private SaxNode currNode = SaxNode.None;
-  private enum SaxNode { None, Path, Args, Type, Node, DependencyNode};
+  private boolean inInputs = false;
+  private enum SaxNode { None, Path, Args, Type, Node, DependencyNode, StateInfoInterval, Weight, InputFile, InputDir, InputEnv, PollInterval, PollMaxInterval, MainClass, Classpath, Matrix, Timeout, ExpectedDuration, Idempotent};
   
   public ProcessFileReader() {
   }
@@ -46,6 +49,33 @@ public class ProcessFileReader {
     return zkProcesses;
   }
 
+  /**
+   * Reads the process definitions from a stream, i.e. the definitions published to ZK.
+   *
+   * @param is  The process definitions, in the format of the process definition file.
+   *
+   * @return  A list of ZKProcess objects read from the stream.
+   *
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public List<ZKProcess> read(InputStream is) throws IOException, SAXException, ParserConfigurationException {
+
+    SAXParser saxParser  = SAXParserFactory.newInstance().newSAXParser();
+    saxParser.parse(is, new ProcessCfgHandler());
+
+    return zkProcesses;
+  }
+
+  /**
+   * @return  The number of host slots declared by the <code>slots</code> attribute of the
+   *          <code>Processes</code> element, or 0 if unlimited.
+   */
+  public int getSlots() {
+    return slots;
+  }
+
   /**
    * ZKProcess client process configuration file parser handler.
    */
@@ -59,7 +89,12 @@ public class ProcessFileReader {
 
       super.startElement(uri, localName, qName, attributes);
 
-      if ("process".equalsIgnoreCase(qName)) {
+      if ("processes".equalsIgnoreCase(qName)) {
+        String s = attributes.getValue("slots");
+        if (s != null) {
+          slots = Integer.parseInt(s.trim());
+        }
+      } else if ("process".equalsIgnoreCase(qName)) {
         currProc = new ZKProcess();
         zkProcesses.add(currProc);
       } else if ("path".equalsIgnoreCase(qName)) {
@@ -72,6 +107,42 @@ public class ProcessFileReader {
         currNode = SaxNode.Node;
       } else if ("dependency".equalsIgnoreCase(qName)) {
         currNode = SaxNode.DependencyNode;
+      } else if ("stateinfo-interval".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.StateInfoInterval;
+      } else if ("weight".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.Weight;
+      } else if ("matrix".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.Matrix;
+      } else if ("main-class".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.MainClass;
+      } else if ("classpath".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.Classpath;
+      } else if ("timeout".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.Timeout;
+      } else if ("expected-duration".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.ExpectedDuration;
+      } else if ("idempotent".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.Idempotent;
+      } else if ("poll-interval".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.PollInterval;
+      } else if ("poll-max-interval".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.PollMaxInterval;
+      } else if ("inputs".equalsIgnoreCase(qName)) {
+        inInputs = true;
+      } else if (inInputs && "file".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.InputFile;
+      } else if (inInputs && "dir".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.InputDir;
+      } else if (inInputs && "env".equalsIgnoreCase(qName)) {
+        currNode = SaxNode.InputEnv;
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      super.endElement(uri, localName, qName);
+      if ("inputs".equalsIgnoreCase(qName)) {
+        inInputs = false;
       }
     }
 
@@ -97,7 +168,20 @@ public class ProcessFileReader {
           currProc.setProcessPath(data);
           break;
         case Type:
-          currProc.setProcessType(ZKProcess.ProcessType.Java);
+          try {
+            currProc.setProcessType(ZKProcess.ProcessType.fromString(data));
+          } catch (IllegalArgumentException e) {
+            throw new SAXException(e.getMessage());
+          }
+          break;
+        case Matrix:
+          currProc.addMatrixValues(data);
+          break;
+        case MainClass:
+          currProc.setMainClass(data.trim());
+          break;
+        case Classpath:
+          currProc.setClasspath(data.trim());
           break;
         case Node:
           currProc.setNode(data);
@@ -110,6 +194,36 @@ public class ProcessFileReader {
           }
           break;
         }
+        case StateInfoInterval:
+          currProc.setStateInfoInterval(Long.parseLong(data.trim()));
+          break;
+        case Weight:
+          currProc.setWeight(Integer.parseInt(data.trim()));
+          break;
+        case Timeout:
+          currProc.setTimeout(Long.parseLong(data.trim()));
+          break;
+        case ExpectedDuration:
+          currProc.setExpectedDuration(Long.parseLong(data.trim()));
+          break;
+        case Idempotent:
+          currProc.setIdempotent(Boolean.parseBoolean(data.trim()));
+          break;
+        case PollInterval:
+          currProc.setPollInterval(Long.parseLong(data.trim()));
+          break;
+        case PollMaxInterval:
+          currProc.setPollMaxInterval(Long.parseLong(data.trim()));
+          break;
+        case InputFile:
+          currProc.addInputFile(data.trim());
+          break;
+        case InputDir:
+          currProc.addInputDir(data.trim());
+          break;
+        case InputEnv:
+          currProc.addInputEnv(data.trim());
+          break;
         case None:
           break;
       }
@@ -0,0 +1,139 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.Jmx;
+import com.proquest.magnolia.statemgr.common.LatencyHistogram;
+import com.proquest.magnolia.statemgr.common.LatencySnapshot;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the processes run in this JVM, their outcomes and output, and times every stage;
+ * registered once per JVM as the <code>type=Processes</code> MBean. The output is counted
+ * for every read of a capture, so the counters are plain atomics.
+ */
+public class ProcessMetrics implements ProcessMetricsMXBean {
+
+  private static final ProcessMetrics instance = new ProcessMetrics();
+
+  static {
+    Jmx.register(instance, "Processes", null);
+  }
+
+  private final AtomicInteger active = new AtomicInteger(0);
+  private final AtomicLong started = new AtomicLong(0);
+  private final AtomicLong succeeded = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+  private final AtomicLong timedOut = new AtomicLong(0);
+  private final AtomicLong speculative = new AtomicLong(0);
+  private final AtomicLong speculativeWon = new AtomicLong(0);
+  private final AtomicLong outputBytes = new AtomicLong(0);
+  private final AtomicLong outputWrites = new AtomicLong(0);
+  private final ConcurrentMap<String,LatencyHistogram> stageDurations = new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private ProcessMetrics() {
+  }
+
+  /**
+   * @return  The metrics of this JVM
+   */
+  public static ProcessMetrics get() {
+    return instance;
+  }
+
+  void processStarted(boolean isSpeculative) {
+    active.incrementAndGet();
+    started.incrementAndGet();
+    if (isSpeculative) {
+      speculative.incrementAndGet();
+    }
+  }
+
+  void processEnded() {
+    active.decrementAndGet();
+  }
+
+  /**
+   * Records the result of a run that set the final state of its stage.
+   * @param stage         The stage node
+   * @param durationMs    The time the run took
+   * @param success       true if it succeeded
+   * @param isSpeculative true if it was a speculative attempt
+   */
+  void stageFinished(String stage, long durationMs, boolean success, boolean isSpeculative) {
+    (success ? succeeded : failed).incrementAndGet();
+    if (success && isSpeculative) {
+      speculativeWon.incrementAndGet();
+    }
+    LatencyHistogram histogram = stageDurations.get(stage);
+    if (histogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = stageDurations.putIfAbsent(stage, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    histogram.recordSince(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(durationMs), !success);
+  }
+
+  void recordTimeout() {
+    timedOut.incrementAndGet();
+  }
+
+  void recordOutput(int bytes) {
+    outputBytes.addAndGet(bytes);
+  }
+
+  void recordOutputWrite() {
+    outputWrites.incrementAndGet();
+  }
+
+  public int getActiveProcesses() {
+    return active.get();
+  }
+
+  public long getStartedCount() {
+    return started.get();
+  }
+
+  public long getSucceededCount() {
+    return succeeded.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  public long getSpeculativeCount() {
+    return speculative.get();
+  }
+
+  public long getSpeculativeWonCount() {
+    return speculativeWon.get();
+  }
+
+  public long getOutputBytes() {
+    return outputBytes.get();
+  }
+
+  public long getOutputWrites() {
+    return outputWrites.get();
+  }
+
+  public Map<String,LatencySnapshot> getStageDurations() {
+    Map<String,LatencySnapshot> durations = new TreeMap<String, LatencySnapshot>();
+    for (Map.Entry<String,LatencyHistogram> entry : stageDurations.entrySet()) {
+      durations.put(entry.getKey(), entry.getValue().getSnapshot());
+    }
+    return durations;
+  }
+}
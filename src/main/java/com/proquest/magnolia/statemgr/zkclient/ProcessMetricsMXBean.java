@@ -0,0 +1,46 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.LatencySnapshot;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the processes run in this JVM. Counts only ever grow; durations are in milliseconds.
+ */
+public interface ProcessMetricsMXBean {
+
+  /**
+   * @return  The number of child processes, in-JVM stages and polls running now
+   */
+  int getActiveProcesses();
+
+  long getStartedCount();
+
+  long getSucceededCount();
+
+  long getFailedCount();
+
+  long getTimedOutCount();
+
+  long getSpeculativeCount();
+
+  /**
+   * @return  The number of speculative attempts that succeeded before the first attempt
+   */
+  long getSpeculativeWonCount();
+
+  /**
+   * @return  The number of bytes of process output captured
+   */
+  long getOutputBytes();
+
+  /**
+   * @return  The number of writes of process output to the log files
+   */
+  long getOutputWrites();
+
+  /**
+   * @return  The durations of the recorded runs of every stage, failed runs counted as errors
+   */
+  Map<String,LatencySnapshot> getStageDurations();
+}
@@ -0,0 +1,161 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the check command of a poll process until it reports that the awaited condition holds.
+ * The exit code of each probe decides what happens next:
+ * <ul>
+ *   <li>0 - done, the process succeeds</li>
+ *   <li>1 - not yet, the probe is scheduled again</li>
+ *   <li>anything else - the process fails</li>
+ * </ul>
+ * Probes run on the worker pool and are scheduled on the client's scheduler, so no thread is
+ * held between them. The interval starts at the poll interval of the process and grows by half
+ * after every probe whose output did not change, up to the maximum poll interval; a change in
+ * the output is taken as progress and resets it.
+ */
+class ProcessPoller implements Runnable, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(ProcessPoller.class.getName());
+
+  private static final double BACKOFF_FACTOR = 1.5;
+
+  private ProcessRunner runner;
+  private ZKClientBase zk;
+  private StageStore store;
+  private ZKProcess zkProc;
+  private List<String> command;
+  private String fingerprint;
+  private long startMillis;
+
+  private long interval;
+  private volatile int probes = 0;
+  private String lastOutput = null;
+  private volatile boolean cancelled = false;
+  private volatile boolean finished = false;
+  private volatile Process probe = null;
+  private volatile ScheduledFuture<?> next = null;
+
+  /**
+   * Constructor.
+   * @param runner      The runner to report the result to
+   * @param zk          ZKClient reference
+   * @param store       The stage store to publish progress to
+   * @param zkProcess   The poll process
+   * @param command     The check command
+   * @param fingerprint The fingerprint of the process inputs, or null
+   * @param startMillis The time the process started
+   */
+  ProcessPoller(ProcessRunner runner, ZKClientBase zk, StageStore store, ZKProcess zkProcess,
+                List<String> command, String fingerprint, long startMillis) {
+    this.runner = runner;
+    this.zk = zk;
+    this.store = store;
+    this.zkProc = zkProcess;
+    this.command = command;
+    this.fingerprint = fingerprint;
+    this.startMillis = startMillis;
+    this.interval = zkProcess.getPollInterval();
+  }
+
+  /**
+   * Runs the first probe on the worker pool.
+   */
+  void start() {
+    zk.getWorkerPool().execute(this);
+  }
+
+  /**
+   * Runs a single probe and either finishes or schedules the next one.
+   */
+  @Override
+  public void run() {
+    if (cancelled) {
+      return;
+    }
+    probes++;
+    int retVal;
+    String output = "";
+    try {
+      probe = new ProcessBuilder(command).redirectErrorStream(true).start();
+      OutputCapture capture = new OutputCapture(probe.getInputStream(), zkProc.getNode(), probes > 1);
+      // The probe is short lived, so its output is read on this thread
+      capture.run();
+      retVal = probe.waitFor();
+      output = capture.getLastOutput();
+    } catch (Exception e) {
+      logger.error(String.format("Unable to run the probe {process=[%s]}", zkProc.getProcessPath()), e);
+      retVal = -1;
+    } finally {
+      probe = null;
+    }
+    if (cancelled) {
+      return;
+    }
+
+    if (retVal != 1) {
+      logger.info(String.format("Poll finished {process=[%s], probes=[%d], exitCode=[%d]}",
+          zkProc.getProcessPath(), probes, retVal));
+      finish(retVal, output);
+      return;
+    }
+
+    // Not done yet; back off while nothing changes
+    if (lastOutput != null && lastOutput.equals(output)) {
+      interval = Math.min((long) (interval * BACKOFF_FACTOR), zkProc.getPollMaxInterval());
+    } else {
+      interval = zkProc.getPollInterval();
+    }
+    lastOutput = output;
+    String info = String.format("%s (check %d, next in %ds)", output, probes, TimeUnit.MILLISECONDS.toSeconds(interval));
+    store.update(zkProc.getNode(), NODE_STATE_INFO, info.trim());
+    logger.debug(String.format("Poll not done {process=[%s], probes=[%d], intervalMs=[%d]}",
+        zkProc.getProcessPath(), probes, interval));
+
+    next = zk.getScheduler().schedule(new Runnable() {
+      public void run() {
+        zk.getWorkerPool().execute(ProcessPoller.this);
+      }
+    }, interval, TimeUnit.MILLISECONDS);
+    if (cancelled) {
+      next.cancel(false);
+    }
+  }
+
+  /**
+   * Stops polling without waiting; the process fails as if it had been killed. The result is
+   * reported on the worker pool, since it is written to ZK and the caller may hold locks.
+   */
+  void cancel() {
+    cancelled = true;
+    ScheduledFuture<?> f = next;
+    if (f != null) {
+      f.cancel(false);
+    }
+    Process p = probe;
+    if (p != null) {
+      p.destroy();
+    }
+    zk.getWorkerPool().execute(new Runnable() {
+      public void run() {
+        finish(1, "Cancelled after " + probes + " checks");
+      }
+    });
+  }
+
+  private synchronized void finish(int retVal, String info) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    runner.pollFinished(retVal, fingerprint, info, System.currentTimeMillis() - startMillis);
+  }
+}
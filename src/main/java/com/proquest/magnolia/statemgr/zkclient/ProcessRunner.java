@@ -1,25 +1,80 @@
 package com.proquest.magnolia.statemgr.zkclient;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.proquest.magnolia.statemgr.common.StageStore;
 import com.proquest.magnolia.statemgr.common.ZKClientBase;
 import com.proquest.magnolia.statemgr.common.ZKConstants;
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Responsible for running the actual process on the machine.
+ * Responsible for running the actual process on the machine. Poll processes are handed to
+ * a {@link ProcessPoller}, which probes on the client's scheduler until the check is done,
+ * and Java processes with a main class run inside the client JVM as a {@link JavaStage}, or in a
+ * JVM of their own where the JVM can't keep a stage from exiting it.
+ * While the process runs its ephemeral <code>/Owner</code> node names this host and JVM, so
+ * a runner that dies is detected by the {@link com.proquest.magnolia.statemgr.common.LivenessMonitor}.
+ *
+ * A process that runs past its timeout is stopped, first gracefully and then forcibly once the
+ * kill grace period (<code>statemgr.kill.grace</code>) has passed, and fails. An idempotent
+ * process in shared mode that runs past its expected duration times the speculation factor
+ * (<code>statemgr.speculate.factor</code>) creates its ephemeral <code>/Speculate</code> node,
+ * which another client may claim to start a speculative attempt. The final state is only
+ * written while the stage is still IN_PROGRESS, so the first attempt to succeed wins and the
+ * other one is stopped; a failed speculative attempt is discarded, leaving the stage to the first.
  */
 public class ProcessRunner implements Runnable, ZKConstants {
 
   private static final Logger logger = Logger.getLogger(ProcessRunner.class.getName());
-  private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+  private static SimpleDateFormat sdf = new SimpleDateFormat(TIMESTAMP_FORMAT);
+  private static final long STREAM_DRAIN_TIMEOUT = 5000L;
+  private static final long KILL_GRACE = Long.getLong("statemgr.kill.grace", 10000L);
+  private static final double SPECULATE_FACTOR = Double.parseDouble(System.getProperty("statemgr.speculate.factor", "2"));
 
   private ZKClientBase zk = null;
+  private StageStore store = null;
   private ZKProcess zkProc = null;
-  private Process child = null;
+  private volatile Process child = null;
+  private volatile JavaStage javaStage = null;
+  private volatile ProcessPoller poller = null;
+  private volatile StateInfoPublisher publisher = null;
+  private AtomicBoolean running = new AtomicBoolean(false);
+  private volatile AdmissionController admission = null;
+  private volatile boolean owned = false;
+  private final boolean speculative;
+  private volatile boolean speculationAllowed = false;
+  private volatile boolean speculating = false;
+  private volatile String timeoutInfo = null;
+  private volatile boolean superseded = false;
+  private volatile ScheduledFuture<?> deadline = null;
+  private volatile ScheduledFuture<?> straggling = null;
+  private AtomicInteger attempts = new AtomicInteger(0);
+  private volatile boolean counted = false;
+  private volatile SettableFuture<Void> finished = null;
 
   /**
    * Constructor.
@@ -27,19 +82,73 @@ public class ProcessRunner implements Runnable, ZKConstants {
    * @param zkProcess Process to run
    */
   public ProcessRunner(ZKClientBase zk, ZKProcess zkProcess) {
+    this(zk, zkProcess, false);
+  }
+
+  /**
+   * Constructor.
+   * @param zk          ZKClient Reference
+   * @param zkProcess   Process to run
+   * @param speculative true to run a speculative attempt of a stage that is already IN_PROGRESS
+   *                    elsewhere, which only records its result if it succeeds first
+   */
+  ProcessRunner(ZKClientBase zk, ZKProcess zkProcess, boolean speculative) {
     this.zk = zk;
+    this.store = new StageStore(zk);
     this.zkProc = zkProcess;
+    this.speculative = speculative;
   }
 
   /**
-   * Starts the process associated with this object on a new thread.
+   * Allows the process to request a speculative attempt on another client when it runs long.
+   * Only set for idempotent processes in shared mode.
+   */
+  void setSpeculationAllowed(boolean speculationAllowed) {
+    this.speculationAllowed = speculationAllowed;
+  }
+
+  /**
+   * Starts the process associated with this object on the client's worker pool,
+   * unless it is already running.
    */
   public void startProcess() {
-    logger.info(String.format("Starting the thread used to start the process {process=[%s]}", zkProc.getProcessPath()));
-    Thread t = new Thread(this);
-    t.setDaemon(true);
-    t.setName("subproc-" + zkProc.getNode());
-    t.start();
+    startProcess(null);
+  }
+
+  /**
+   * Starts the process associated with this object on the client's worker pool,
+   * unless it is already running.
+   * @param admission The admission controller to release the process slots to when done, may be null
+   * @return true if the process was started
+   */
+  public boolean startProcess(AdmissionController admission) {
+    if (!running.compareAndSet(false, true)) {
+      logger.info(String.format("Process is already running {process=[%s]}", zkProc.getProcessPath()));
+      return false;
+    }
+    this.admission = admission;
+    finished = SettableFuture.create();
+    logger.info(String.format("Submitting the process to the worker pool {process=[%s]}", zkProc.getProcessPath()));
+    zk.getWorkerPool().execute(this);
+    return true;
+  }
+
+  public ZKProcess getProcess() {
+    return zkProc;
+  }
+
+  /**
+   * @return  true if the process has been started and has not finished yet
+   */
+  public boolean isRunning() {
+    return running.get();
+  }
+
+  /**
+   * @return  true while the child process, in-JVM stage or poller is running
+   */
+  boolean isExecuting() {
+    return child != null || javaStage != null || poller != null;
   }
 
   /**
@@ -47,109 +156,491 @@ public class ProcessRunner implements Runnable, ZKConstants {
    */
   @Override
   public void run() {
+    boolean handedOff = false;
     try {
       int retVal = 0;
-      
-      logger.info(String.format("Starting child process {process=[%s]}", zkProc.getProcessPath()));
-
-      zk.setData(zkProc.getSubNode(NODE_TIME_START), getCurrentDateTime());
-      zk.setData(zkProc.getSubNode(NODE_STATE), STATE_INPROGRESS);
-      child = Runtime.getRuntime().exec(zkProc.getProcessPath() + " " + zkProc.getArgs());
-      StreamWriter stdOut = new StreamWriter(child.getInputStream());
-      StreamWriter stdErr = new StreamWriter(child.getErrorStream());
+
+      // Skip the process if its inputs have not changed since it last succeeded. If that can't
+      // be told the process is run, without a fingerprint, rather than leaving the stage IDLE.
+      String fingerprint = null;
+      if (zkProc.hasInputs()) {
+        try {
+          fingerprint = InputFingerprint.compute(zkProc);
+          if (!speculative && skipUnchanged(fingerprint)) {
+            return;
+          }
+        } catch (IOException e) {
+          logger.warn(String.format("Unable to fingerprint the inputs, running the process {process=[%s]}",
+              zkProc.getProcessPath()), e);
+          fingerprint = null;
+        } catch (KeeperException e) {
+          logger.warn(String.format("Unable to check the last fingerprint, running the process {process=[%s]}",
+              zkProc.getProcessPath()), e);
+          fingerprint = null;
+        }
+      }
+
+      timeoutInfo = null;
+      superseded = false;
+      long startMillis = System.currentTimeMillis();
+      Future<List<Stat>> started = null;
+      if (speculative) {
+        // The stage is already IN_PROGRESS and owned by the first attempt
+        logger.info(String.format("Starting speculative attempt {process=[%s]}", zkProc.getProcessPath()));
+      } else {
+        logger.info(String.format("Starting child process {process=[%s]}", zkProc.getProcessPath()));
+
+        // Claim ownership before going IN_PROGRESS, so a running stage always has an owner
+        String startTime = getCurrentDateTime();
+        registerOwner(startTime);
+
+        // Record the start without waiting for ZK before launching the child. The fingerprint
+        // is cleared until the process succeeds again.
+        Map<String,String> startWrites = new LinkedHashMap<String, String>();
+        startWrites.put(NODE_TIME_START, startTime);
+        if (fingerprint != null) {
+          startWrites.put(NODE_FINGERPRINT, "");
+        }
+        startWrites.put(NODE_STATE, STATE_INPROGRESS);
+        started = store.update(zkProc.getNode(), startWrites);
+      }
+      scheduleDeadlines(startMillis);
+      ProcessMetrics.get().processStarted(speculative);
+      counted = true;
+
+      // Poll processes are probed on the scheduler and finish asynchronously
+      if (zkProc.getProcessType() == ZKProcess.ProcessType.Poll) {
+        poller = new ProcessPoller(this, zk, store, zkProc, getCommand(), fingerprint, startMillis);
+        poller.start();
+        handedOff = true;
+        return;
+      }
+
+      InputStream processOutput;
+      JavaStage stage = null;
+      if (zkProc.runsInJvm() && JavaStage.isAvailable()) {
+        stage = new JavaStage(zkProc, getArgs());
+        javaStage = stage;
+        processOutput = stage.getOutput();
+      } else {
+        List<String> command = zkProc.runsInJvm() ? getJavaCommand() : getCommand();
+        child = new ProcessBuilder(command).redirectErrorStream(true).start();
+        processOutput = child.getInputStream();
+      }
+      OutputCapture output = new OutputCapture(processOutput, zkProc.getNode());
+      Future<?> outputReader = zk.getWorkerPool().submit(output);
+      // Only the first attempt publishes its progress
+      publisher = null;
+      if (started != null) {
+        publisher = new StateInfoPublisher(store, zkProc.getNode(), zkProc.getStateInfoInterval(), output);
+        publisher.start();
+        try {
+          ZKClientBase.waitFor(started);
+        } catch (KeeperException e) {
+          logger.warn(String.format("Unable to record the process start {process=[%s]}", zkProc.getProcessPath()), e);
+        }
+      }
       try {
-        retVal = child.waitFor();
+        retVal = (stage != null) ? stage.run() : child.waitFor();
       } catch (InterruptedException e) {
         logger.warn(String.format("Process interrupted  {process=[%s]", zkProc.getProcessPath()));
         retVal = 1;
       }
       child = null;
-      zk.setData(zkProc.getSubNode(NODE_TIME_END), getCurrentDateTime());
+      javaStage = null;
+      String endTime = getCurrentDateTime();
 
-      // Setup any additional logging
-      if (stdErr.getOutput().length() > 0) {
-        zk.setData(zkProc.getSubNode(NODE_STATE_INFO), stdErr.getOutput());
-      }
-      if (stdOut.getOutput().length() > 0) {
-        zk.setData(zkProc.getSubNode(NODE_STATE_INFO), stdOut.getOutput());
+      // Flush the last line of output
+      try {
+        outputReader.get(STREAM_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        logger.warn(String.format("Output still open after the process ended {process=[%s]}", zkProc.getProcessPath()));
       }
+      stopPublisher();
+      finish(retVal, endTime, System.currentTimeMillis() - startMillis, fingerprint, output.getLastOutput());
 
-      // Set the SUCCESS or ERROR state
-      if (retVal == 0) {
-        logger.info(String.format("Process succeeded { {process=[%s]}", zkProc.getProcessPath()));
-        zk.setData(zkProc.getSubNode(NODE_STATE), STATE_SUCCESS);
-      } else {
-        logger.error(String.format("Process failed { {process=[%s]}", zkProc.getProcessPath()));
-        zk.setData(zkProc.getSubNode(NODE_STATE), STATE_ERROR);
-        zk.setData(NODE_MASTER, MASTER_STATE_STOP);
+    } catch (Exception e) {
+      logger.error("", e);
+    } finally {
+      if (!handedOff) {
+        done();
       }
+    }
+  }
 
+  /**
+   * Called by the poller once the check is done, has failed or was cancelled.
+   * @param retVal      The exit code of the last probe
+   * @param fingerprint The fingerprint of the process inputs, or null
+   * @param finalInfo   The last line of probe output
+   * @param duration    The time in milliseconds since polling started
+   */
+  void pollFinished(int retVal, String fingerprint, String finalInfo, long duration) {
+    try {
+      poller = null;
+      finish(retVal, getCurrentDateTime(), duration, fingerprint, finalInfo);
     } catch (Exception e) {
       logger.error("", e);
+    } finally {
+      done();
     }
   }
 
-  private static String getCurrentDateTime() {
-    return sdf.format(Calendar.getInstance().getTime());
+  /**
+   * Records the end of the process: the end time, info and duration, and then the SUCCESS or
+   * ERROR state. Nothing is recorded if the stage is no longer IN_PROGRESS, i.e. another attempt
+   * has finished first or the stage was reset in the meantime.
+   */
+  private void finish(int retVal, String endTime, long duration, String fingerprint, String finalInfo)
+      throws KeeperException, InterruptedException {
+    if (superseded) {
+      logger.info(String.format("Another client owns the stage now, discarding the result {process=[%s], exitCode=[%d]}",
+          zkProc.getProcessPath(), retVal));
+      return;
+    }
+    if (timeoutInfo != null) {
+      retVal = (retVal == 0) ? 1 : retVal;
+      finalInfo = timeoutInfo;
+    }
+    if (speculative && retVal != 0) {
+      logger.warn(String.format("Speculative attempt failed, leaving the stage to the first attempt {process=[%s], exitCode=[%d]}",
+          zkProc.getProcessPath(), retVal));
+      return;
+    }
+
+    // Set the SUCCESS or ERROR state, after the end time, once the info above is in place
+    Map<String,String> endWrites = new LinkedHashMap<String, String>();
+    if (finalInfo != null && finalInfo.length() > 0) {
+      endWrites.put(NODE_STATE_INFO, finalInfo);
+    }
+    endWrites.put(NODE_TIME_END, endTime);
+    if (retVal == 0) {
+      if (fingerprint != null) {
+        endWrites.put(NODE_FINGERPRINT, fingerprint);
+      }
+      endWrites.put(NODE_DURATION, Long.toString(duration));
+      endWrites.put(NODE_STATE, STATE_SUCCESS);
+    } else {
+      endWrites.put(NODE_STATE, STATE_ERROR);
+    }
+    if (!ZKClientBase.waitFor(store.updateIf(zkProc.getNode(), STATE_INPROGRESS, endWrites))) {
+      logger.info(String.format("The stage is no longer in progress, discarding the result {process=[%s], exitCode=[%d]}",
+          zkProc.getProcessPath(), retVal));
+      return;
+    }
+    ProcessMetrics.get().stageFinished(zkProc.getNode(), duration, retVal == 0, speculative);
+    if (retVal == 0) {
+      logger.info(String.format("Process succeeded { {process=[%s], speculative=[%b]}", zkProc.getProcessPath(), speculative));
+    } else {
+      logger.error(String.format("Process failed { {process=[%s]}", zkProc.getProcessPath()));
+      zk.setData(NODE_MASTER, MASTER_STATE_STOP);
+    }
   }
 
   /**
-   * Stops the client process synchronously if one exists.
-   * @param logMessage  A log message
+   * Schedules the timeout of the process and, if it may speculate, the request for a
+   * speculative attempt once it runs long.
    */
-  public void stopProcess(String logMessage) {
-    logger.info(logMessage);
-    if (child != null) {
-      child.destroy();
-      try {
-        child.waitFor();
-      } catch (InterruptedException e) {
+  private void scheduleDeadlines(long startMillis) {
+    final int attempt = attempts.incrementAndGet();
+    if (zkProc.getTimeout() > 0) {
+      deadline = schedule(new Runnable() {
+        public void run() {
+          timeout(attempt);
+        }
+      }, zkProc.getTimeout());
+    }
+    if (speculationAllowed && !speculative) {
+      long expected = getExpectedDuration();
+      if (expected > 0) {
+        final long threshold = (long) (expected * SPECULATE_FACTOR);
+        straggling = schedule(new Runnable() {
+          public void run() {
+            requestSpeculation(attempt, threshold);
+          }
+        }, threshold - (System.currentTimeMillis() - startMillis));
       }
-      child = null;
+    }
+  }
+
+  private ScheduledFuture<?> schedule(final Runnable task, long delay) {
+    return zk.getScheduler().schedule(new Runnable() {
+      public void run() {
+        zk.getWorkerPool().execute(task);
+      }
+    }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return  true if the attempt is the one still running
+   */
+  private boolean isCurrent(int attempt) {
+    return running.get() && attempt == attempts.get();
+  }
+
+  /**
+   * @return  The configured expected duration, or else that of the last successful run
+   */
+  private long getExpectedDuration() {
+    if (zkProc.getExpectedDuration() > 0) {
+      return zkProc.getExpectedDuration();
+    }
+    try {
+      String last = store.read(Collections.singletonList(zkProc.getNode())).get(0).get(NODE_DURATION);
+      return (last != null && last.length() > 0) ? Long.parseLong(last) : 0;
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to read the last duration {process=[%s]}", zkProc.getProcessPath()), e);
+      return 0;
     }
   }
 
   /**
-   * Buffers the log information output by the specified process.
-   * This information is written out to the stateInfo node.
+   * Stops the process once it has run past its timeout; it then fails.
    */
-  class StreamWriter extends Thread {
-    InputStream is = null;
-    StringBuilder buffer = new StringBuilder("");
+  private void timeout(int attempt) {
+    if (!isCurrent(attempt)) {
+      return;
+    }
+    logger.error(String.format("Process timed out, stopping it {process=[%s], timeoutMs=[%d]}",
+        zkProc.getProcessPath(), zkProc.getTimeout()));
+    timeoutInfo = String.format("Timed out after %ds", TimeUnit.MILLISECONDS.toSeconds(zkProc.getTimeout()));
+    ProcessMetrics.get().recordTimeout();
+    terminate();
+  }
 
-    StreamWriter(InputStream is) {
-      this.is = is;
-      start();
+  /**
+   * Asks for a speculative attempt of the process on another client.
+   */
+  private void requestSpeculation(int attempt, long threshold) {
+    if (!isCurrent(attempt)) {
+      return;
     }
+    logger.info(String.format("Process is running long, requesting a speculative attempt {process=[%s], thresholdMs=[%d]}",
+        zkProc.getProcessPath(), threshold));
+    speculating = true;
+    try {
+      zk.createEphemeral(zkProc.getSubNode(NODE_SPECULATE), new byte[0], new ZKClientBase.EphemeralListener() {
+        public void ephemeralLost(String path) {
+          speculating = false;
+        }
+      });
+      if (!isCurrent(attempt)) {
+        // Finished in the meantime
+        zk.delete(zkProc.getSubNode(NODE_SPECULATE));
+      }
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to request a speculative attempt {process=[%s]}", zkProc.getProcessPath()), e);
+    }
+  }
 
-    public String getOutput() {
-      String output = buffer.toString();
-      if (output.startsWith("mes\n")) {
-        output = "";
+  private void done() {
+    attempts.incrementAndGet();
+    if (counted) {
+      counted = false;
+      ProcessMetrics.get().processEnded();
+    }
+    cancel(deadline);
+    cancel(straggling);
+    if (speculating) {
+      speculating = false;
+      try {
+        zk.delete(zkProc.getSubNode(NODE_SPECULATE));
+      } catch (Exception e) {
+        logger.warn(String.format("Unable to remove the speculation node {node=[%s]}", zkProc.getNode()), e);
       }
-      return output;
     }
-    
-    public void run() {
-      byte b[] = new byte[80];
+    if (owned) {
+      owned = false;
       try {
-        while (is.read(b) != -1) {
-          buffer.append(new String(b));
-          
-          int i = 0;
-          while ((i=buffer.indexOf("\n")) != -1) {
-            String line = buffer.substring(0, i);
-            try {
-              if (!line.equals("mes")) {
-                zk.setData(zkProc.getSubNode(NODE_STATE_INFO), line);
-              }
-              buffer.delete(0, i+1);
-            } catch (Exception e) {
-            }
-          }
-        }
-      } catch (IOException e) {
+        zk.delete(zkProc.getSubNode(NODE_OWNER));
+      } catch (Exception e) {
+        logger.warn(String.format("Unable to remove the owner node {node=[%s]}", zkProc.getNode()), e);
       }
     }
+    running.set(false);
+    SettableFuture<Void> f = finished;
+    if (f != null) {
+      f.set(null);
+    }
+    if (admission != null) {
+      admission.release(this);
+    }
+  }
+
+  /**
+   * Creates the ephemeral owner node of the process: the host, the pid of this JVM and the start time.
+   * The node is created again if the session expires; if another client holds it by then the
+   * process is stopped and its result discarded.
+   */
+  private void registerOwner(String startTime) throws KeeperException, InterruptedException {
+    zk.createEphemeral(zkProc.getSubNode(NODE_OWNER), getOwnerData(startTime), new ZKClientBase.EphemeralListener() {
+      public void ephemeralLost(String path) {
+        // The liveness monitor took the stage back while the session was gone
+        owned = false;
+        supersede(String.format("Lost the owner node, stopping the process {process=[%s]}", zkProc.getProcessPath()));
+      }
+    });
+    owned = true;
+  }
+
+  /**
+   * @param startTime The time the stage started
+   * @return  The data of an owner node of this JVM: the host, the pid and the start time
+   */
+  static byte[] getOwnerData(String startTime) {
+    String[] name = ManagementFactory.getRuntimeMXBean().getName().split("@");
+    try {
+      JSONObject owner = new JSONObject();
+      owner.put("host", (name.length == 2) ? name[1] : name[0]);
+      owner.put("pid", (name.length == 2) ? name[0] : "");
+      owner.put("start", startTime);
+      return ZKClientBase.encode(owner.toString());
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Moves the process straight to SUCCESS if the fingerprint of its inputs matches the one
+   * stored with its last success.
+   * @param fingerprint The fingerprint of the current inputs
+   * @return true if the process was skipped
+   */
+  private boolean skipUnchanged(String fingerprint) throws KeeperException, InterruptedException {
+    String last = store.read(Collections.singletonList(zkProc.getNode())).get(0).get(NODE_FINGERPRINT);
+    if (!fingerprint.equals(last)) {
+      return false;
+    }
+    logger.info(String.format("Inputs unchanged, skipping the process {process=[%s], fingerprint=[%s]}",
+        zkProc.getProcessPath(), fingerprint));
+    String now = getCurrentDateTime();
+    Map<String,String> writes = new LinkedHashMap<String, String>();
+    writes.put(NODE_TIME_START, now);
+    writes.put(NODE_STATE_INFO, "Skipped, inputs unchanged");
+    writes.put(NODE_TIME_END, now);
+    writes.put(NODE_STATE, STATE_SUCCESS);
+    ZKClientBase.waitFor(store.update(zkProc.getNode(), writes));
+    return true;
+  }
+
+  /**
+   * Splits the process path and arguments on whitespace, as <code>Runtime.exec</code> does.
+   */
+  private List<String> getCommand() {
+    return split(zkProc.getProcessPath() + " " + zkProc.getArgs());
+  }
+
+  /**
+   * Runs the main class of a Java process in a JVM of its own, for when it can't run in this one.
+   */
+  private List<String> getJavaCommand() {
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    command.add("-cp");
+    command.add(zkProc.getClasspath());
+    command.add(zkProc.getMainClass());
+    command.addAll(getArgs());
+    return command;
+  }
+
+  /**
+   * Splits the process arguments on whitespace.
+   */
+  private List<String> getArgs() {
+    return split(zkProc.getArgs());
+  }
+
+  private static List<String> split(String s) {
+    List<String> tokens = new ArrayList<String>();
+    StringTokenizer st = new StringTokenizer(s);
+    while (st.hasMoreTokens()) {
+      tokens.add(st.nextToken());
+    }
+    return tokens;
+  }
+
+  private static synchronized String getCurrentDateTime() {
+    return sdf.format(Calendar.getInstance().getTime());
+  }
+
+  private static void cancel(ScheduledFuture<?> task) {
+    if (task != null) {
+      task.cancel(false);
+    }
+  }
+
+  /**
+   * Stops the client process if one exists, without waiting for it to exit.
+   * @param logMessage  A log message
+   * @return A future that completes once the process has exited and its result has been recorded
+   */
+  public ListenableFuture<Void> stopProcess(String logMessage) {
+    logger.info(logMessage);
+    SettableFuture<Void> f = finished;
+    terminate();
+    return (f != null) ? f : Futures.<Void>immediateFuture(null);
+  }
+
+  /**
+   * Stops the process because another client runs the stage now; its result is discarded.
+   * @param logMessage  A log message
+   */
+  void supersede(String logMessage) {
+    superseded = true;
+    stopProcess(logMessage);
+  }
+
+  private void stopPublisher() {
+    StateInfoPublisher p = publisher;
+    if (p != null) {
+      p.stop();
+    }
+  }
+
+  /**
+   * Stops publishing the output and stops the poller or in-JVM stage, or asks the child process to terminate and kills it
+   * forcibly if it is still running once the kill grace period has passed.
+   */
+  private void terminate() {
+    stopPublisher();
+    ProcessPoller p = poller;
+    if (p != null) {
+      p.cancel();
+    }
+    JavaStage stage = javaStage;
+    if (stage != null) {
+      stage.cancel();
+    }
+    final Process c = child;
+    if (c != null) {
+      c.destroy();
+      zk.getScheduler().schedule(new Runnable() {
+        public void run() {
+          destroyForcibly(c);
+        }
+      }, KILL_GRACE, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Kills the process if it is still running. <code>Process.destroyForcibly</code> only exists
+   * from Java 8 on, so it is looked up reflectively; before that destroy is all there is.
+   */
+  private void destroyForcibly(Process p) {
+    try {
+      p.exitValue();
+      return;
+    } catch (IllegalThreadStateException e) {
+      // Still running
+    }
+    logger.warn(String.format("Process still running after the kill grace period, killing it {process=[%s], graceMs=[%d]}",
+        zkProc.getProcessPath(), KILL_GRACE));
+    try {
+      Process.class.getMethod("destroyForcibly").invoke(p);
+    } catch (NoSuchMethodException e) {
+      p.destroy();
+    } catch (Exception e) {
+      logger.warn(String.format("Unable to kill the process {process=[%s]}", zkProc.getProcessPath()), e);
+    }
   }
 }
@@ -1,28 +1,39 @@
 package com.proquest.magnolia.statemgr.zkclient;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.proquest.magnolia.statemgr.common.DataMonitor;
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
 import com.proquest.magnolia.statemgr.common.ZKConstants;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages the launching of processes in conjunction with the DataMonitor class. This class
- * simply waits for notifications from DataMonitor for node state changes and launches or stops
- * the executable process as needed.
+ * simply reacts to notifications from DataMonitor for node state changes and launches or stops
+ * the executable process as needed. It holds no thread of its own while idle. In shared mode
+ * a ready process is only run once this client has claimed it through the {@link WorkClaimer},
+ * and a speculative attempt of an idempotent process running long elsewhere may be claimed too.
+ * A process still running once its stage is final, i.e. the losing attempt, is stopped.
  */
-public class ProcessRunnerMgr implements Watcher, Runnable, DataMonitor.DataMonitorListener, ZKConstants {
+public class ProcessRunnerMgr implements DataMonitor.DataMonitorListener, ZKConstants {
 
   private static final Logger logger = Logger.getLogger(ProcessRunnerMgr.class.getName());
 
   private ProcessRunner processRunner;
-  private DataMonitor dm;
+  private ProcessRunner speculativeRunner = null;
+  private String speculateNode = null;
+  private volatile DataMonitor dm;
   private ZKClient zk;
+  private WorkClaimer claimer;
+  private StageStore store;
   private ZKProcess zkProc;
+  private String stateNode;
+  private Set<String> dependencyNodes = new LinkedHashSet<String>();
   private MasterProcessState masterState = MasterProcessState.Unknown;
   private ProcessState thisProcessState = ProcessState.Unknown;
   private Map<String,ProcessState> dependencyStates = Collections.synchronizedMap(new HashMap<String, ProcessState>());
@@ -38,77 +49,223 @@ public class ProcessRunnerMgr implements Watcher, Runnable, DataMonitor.DataMoni
    * @throws IOException
    */
   public ProcessRunnerMgr(ZKClient zk, ZKProcess zkProc) throws KeeperException, IOException {
+    this(zk, zkProc, null);
+  }
+
+  /**
+   * Constructor.
+   * @param zk      ZKClient reference.
+   * @param zkProc  Process to execute
+   * @param claimer The claimer of shared work, or null if the process always runs on this client
+   * @throws KeeperException
+   * @throws IOException
+   */
+  public ProcessRunnerMgr(ZKClient zk, ZKProcess zkProc, WorkClaimer claimer) throws KeeperException, IOException {
     this.zk = zk;
+    this.claimer = claimer;
     this.zkProc = zkProc;
+    this.store = new StageStore(zk);
 
-    List<String> znodes = new ArrayList<String>(zkProc.getDependencyStateNodes());
-    znodes.add(NODE_MASTER);
-    znodes.add(zkProc.getSubNode(NODE_STATE));
+    // The nodes holding the state of this process and of its dependencies
+    this.stateNode = store.getNode(zkProc.getNode(), NODE_STATE);
+    for (String depNode : zkProc.getDependencyNodes()) {
+      String depStateNode = depNode + NODE_STATE;
+      dependencyNodes.add(NODE_MASTER.equals(depStateNode) ? NODE_MASTER : store.getNode(depNode, NODE_STATE));
+    }
 
     this.processRunner = new ProcessRunner(zk, zkProc);
-    this.dm = new DataMonitor(zk, znodes, this);
-    this.zk.addWatch(this);
+    if (claimer != null && zkProc.isIdempotent() && zkProc.getProcessType() != ZKProcess.ProcessType.Poll) {
+      processRunner.setSpeculationAllowed(true);
+      this.speculativeRunner = new ProcessRunner(zk, zkProc, true);
+      this.speculateNode = zkProc.getSubNode(NODE_SPECULATE);
+    }
   }
 
   /**
-   * Forwards the event to the DataMonitor object.
+   * Reads the initial master, dependency, and current process states in one pipelined batch
+   * and then starts monitoring the nodes. Returns without waiting for the reads. The nodes
+   * journaled before a restart are only read again if their version has changed.
    */
-  public void process(WatchedEvent event) {
-    dm.process(event);
+  public void start() {
+    logger.info(String.format("ProcessRunningMgr is starting {node=[%s]}", zkProc.getNode()));
+
+    final List<String> znodes = new ArrayList<String>();
+    znodes.add(NODE_MASTER);
+    znodes.addAll(dependencyNodes);
+    znodes.add(stateNode);
+
+    final Map<String,Long> seen = new ConcurrentHashMap<String, Long>();
+    final ListenableFuture<List<String>> initialStates = zk.getJournaledDataAsync(znodes, seen);
+    initialStates.addListener(new Runnable() {
+      public void run() {
+        try {
+          initProcessStates(znodes, ZKClientBase.waitFor(initialStates));
+        } catch (Exception e) {
+          logger.error(String.format("Unable to read the initial process states {node=[%s]}", zkProc.getNode()), e);
+        }
+        List<String> watched = new ArrayList<String>(znodes);
+        if (speculateNode != null) {
+          watched.add(speculateNode);
+        }
+        // The nodes read are only notified again once they change, so they are acted on now
+        // Only the state of the records is acted on; their other fields change on every run
+        dm = new DataMonitor(zk, watched, ProcessRunnerMgr.this, seen, NODE_STATE);
+        synchronized (ProcessRunnerMgr.this) {
+          evaluate();
+        }
+      }
+    }, zk.getWorkerPool());
+  }
+
+  public ZKProcess getProcess() {
+    return zkProc;
   }
 
-  public void run() {
-    logger.info("ProcessRunningMgr is starting...");
-    try {
-      synchronized (this) {
-        
-        initProcessStates();
+  /**
+   * @return  true if the master is started, all dependencies have succeeded and the process is idle
+   */
+  public synchronized boolean isReady() {
+    return masterState == MasterProcessState.Started && allDependenciesSucceeded() && thisProcessState == ProcessState.Idle;
+  }
 
-        while (!dm.isDead()) {
-          wait();
+  /**
+   * Called by the claimer once this client has claimed the process; runs it if it is still ready.
+   * The notifications may lag behind ZK, so the master and stage states are read again, after
+   * the claim, and the process only runs if both they and the notified states say it is ready.
+   */
+  void claimed() {
+    final List<String> znodes = Arrays.asList(NODE_MASTER, stateNode);
+    final ListenableFuture<List<String>> states = zk.getDataAsync(znodes);
+    states.addListener(new Runnable() {
+      public void run() {
+        boolean ready = false;
+        try {
+          List<String> data = ZKClientBase.waitFor(states);
+          ready = getMasterProcessState(data.get(0)) == MasterProcessState.Started
+              && getProcessState(store.getField(stateNode, data.get(1), NODE_STATE)) == ProcessState.Idle;
+        } catch (Exception e) {
+          logger.warn(String.format("Unable to read the claimed process state {node=[%s]}", zkProc.getNode()), e);
+        }
+        synchronized (ProcessRunnerMgr.this) {
+          if (ready && isReady()) {
+            zk.getAdmissionController().submit(processRunner);
+          } else {
+            claimer.release(ProcessRunnerMgr.this);
+          }
         }
       }
-    } catch (InterruptedException e) {
+    }, zk.getWorkerPool());
+  }
+
+  /**
+   * Called by the claimer when the claim could not be created again after the session expired,
+   * so another client holds the stage now; stops the process.
+   */
+  synchronized void claimLost() {
+    zk.getAdmissionController().cancel(processRunner);
+    if (processRunner.isExecuting()) {
+      processRunner.supersede(String.format("Lost the claim of the stage, stopping the process {node=[%s]}", zkProc.getNode()));
     }
-    logger.info("ProcessRunningMgr is dead");
   }
 
-  public void closing(int rc) {
-    synchronized (this) {
-      notifyAll();
+  /**
+   * Called by the claimer once this client has claimed the speculative attempt of the process;
+   * runs it if the stage is still IN_PROGRESS on another client.
+   */
+  synchronized void speculationClaimed() {
+    if (thisProcessState == ProcessState.InProgress && !processRunner.isRunning()) {
+      zk.getAdmissionController().submit(speculativeRunner);
     }
   }
 
+  public boolean isDead() {
+    return dm != null && dm.isDead();
+  }
+
+  public void closing(int rc) {
+    logger.info(String.format("ProcessRunningMgr is dead {node=[%s]}", zkProc.getNode()));
+  }
+
   /**
-   * 
+   * Called by the DataMonitor, in order for each node, when a node changes. Notifications of
+   * different nodes may arrive concurrently so they are handled one at a time.
    * @param path
    * @param data
    */
-  public void exists(String path, String data) {
+  public synchronized void exists(String path, String data) {
 
     if (data != null) {
 
-      // If the Master node, update the master state
+      // A speculative attempt was requested by the client running the process
+      if (path.equals(speculateNode)) {
+        if (data.length() == 0 && thisProcessState == ProcessState.InProgress
+            && !processRunner.isRunning() && !speculativeRunner.isRunning()) {
+          claimer.speculate(this);
+        }
+        return;
+      }
+
+      // If the Master node, update the master state (and the dependency on it, if any)
       if (NODE_MASTER.equals(path)) {
         masterState = getMasterProcessState(data);
+        if (dependencyNodes.contains(NODE_MASTER)) {
+          dependencyStates.put(NODE_MASTER, getMasterDependencyState());
+        }
 
       // Update the "dependency" node state
-      } else if (zkProc.getDependencyStateNodes().contains(path)) {
+      } else if (dependencyNodes.contains(path)) {
         logger.info(String.format("Updating dependency state {path=[%s], node=[%s]}", path, data));
-        dependencyStates.put(path, getProcessState(data));
+        dependencyStates.put(path, getProcessState(store.getField(path, data, NODE_STATE)));
 
       // Update this processes node state
-      } else if (zkProc.getSubNode(NODE_STATE).equals(path)) {
-        thisProcessState = getProcessState(data);
+      } else if (stateNode.equals(path)) {
+        thisProcessState = getProcessState(store.getField(path, data, NODE_STATE));
+        if (thisProcessState == ProcessState.Success || thisProcessState == ProcessState.Error) {
+          stopSuperseded();
+        }
       }
-      
-      // Start or stop the process based on the master, dependencies, and current node states
-      if (masterState == MasterProcessState.Started) {
-        if (allDependenciesSucceeded() && (thisProcessState == ProcessState.Idle)) {
-          processRunner.startProcess();
+      evaluate();
+    }
+  }
+
+  /**
+   * Starts or stops the process based on the master, dependencies, and current node states.
+   */
+  private void evaluate() {
+    if (masterState == MasterProcessState.Started) {
+      if (allDependenciesSucceeded() && (thisProcessState == ProcessState.Idle)) {
+        if (claimer != null) {
+          claimer.claim(this);
+        } else {
+          zk.getAdmissionController().submit(processRunner);
         }
-      } else {
-        processRunner.stopProcess("Stopping process...");
+      } else if (claimer != null && (thisProcessState == ProcessState.Success || thisProcessState == ProcessState.Error)) {
+        claimer.release(this);
+      }
+    } else {
+      zk.getAdmissionController().cancel(processRunner);
+      processRunner.stopProcess("Stopping process...");
+      if (speculativeRunner != null) {
+        zk.getAdmissionController().cancel(speculativeRunner);
+        speculativeRunner.stopProcess("Stopping speculative attempt...");
+      }
+      if (claimer != null) {
+        claimer.release(this);
+      }
+    }
+  }
+
+  /**
+   * Stops the attempts still running once the stage is final; their result would be discarded.
+   */
+  private void stopSuperseded() {
+    if (processRunner.isExecuting()) {
+      processRunner.stopProcess(String.format("The stage has finished, stopping the process {node=[%s]}", zkProc.getNode()));
+    }
+    if (speculativeRunner != null) {
+      zk.getAdmissionController().cancel(speculativeRunner);
+      if (speculativeRunner.isExecuting()) {
+        speculativeRunner.stopProcess(String.format("The stage has finished, stopping the speculative attempt {node=[%s]}", zkProc.getNode()));
       }
     }
   }
@@ -128,33 +285,40 @@ public class ProcessRunnerMgr implements Watcher, Runnable, DataMonitor.DataMoni
 
   /**
    * Do a one-time initialization of the master, dependency, and current process states.
+   * @param znodes  The master, dependency and current process state nodes
+   * @param states  The data of each of the nodes
    */
-  private void initProcessStates() {
+  private synchronized void initProcessStates(List<String> znodes, List<String> states) {
 
     if (masterState == MasterProcessState.Unknown) {
-      masterState = getMasterProcessState(zk.getData(NODE_MASTER));
+      masterState = getMasterProcessState(states.get(znodes.indexOf(NODE_MASTER)));
     }
 
     synchronized (dependencyStates) {
-      if (dependencyStates.isEmpty()) {
-        Set<String> depNodes = zkProc.getDependencyStateNodes();
-        for (String depNode : depNodes) {
+      for (String depNode : dependencyNodes) {
+        if (!dependencyStates.containsKey(depNode)) {
           // If a process has the Master as a dependency, need to set it's state based on the master state
           if (depNode.equals(NODE_MASTER)) {
-            ProcessState ps = (masterState == MasterProcessState.Started) ? ProcessState.Success : ProcessState.Idle;
-            dependencyStates.put(NODE_MASTER, ps);
+            dependencyStates.put(NODE_MASTER, getMasterDependencyState());
           } else {
-            dependencyStates.put(depNode, getProcessState(zk.getData(depNode)));
+            dependencyStates.put(depNode, getProcessState(store.getField(depNode, states.get(znodes.indexOf(depNode)), NODE_STATE)));
           }
         }
       }
     }
 
     if (thisProcessState == ProcessState.Unknown) {
-      thisProcessState = getProcessState(zk.getData(zkProc.getSubNode(NODE_STATE)));
+      thisProcessState = getProcessState(store.getField(stateNode, states.get(znodes.indexOf(stateNode)), NODE_STATE));
     }
   }
 
+  /**
+   * @return  The state of a dependency on the Master node
+   */
+  private ProcessState getMasterDependencyState() {
+    return (masterState == MasterProcessState.Started) ? ProcessState.Success : ProcessState.Idle;
+  }
+
   /**
    * Converts the specified state string to a <code>ProcessState</code> enum.
    * @param state The process state as a string (see ZKConstants)
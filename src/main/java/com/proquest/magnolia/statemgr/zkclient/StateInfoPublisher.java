@@ -0,0 +1,101 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the output of a running process to its StateInfo field. Output lines are
+ * coalesced and only the tail of the captured output is written, at most once per interval,
+ * so the number of ZK writes does not grow with the amount of output.
+ */
+public class StateInfoPublisher implements Runnable, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(StateInfoPublisher.class.getName());
+  private static final int TAIL_LINES = Integer.getInteger("statemgr.stateInfo.lines", 1);
+
+  private StageStore store;
+  private String stage;
+  private long interval;
+  private OutputCapture capture;
+  private long publishedCount = 0;
+  private String published = null;
+  private ScheduledFuture<?> task = null;
+
+  /**
+   * Constructor.
+   * @param store     The stage store
+   * @param stage     The stage node to publish to
+   * @param interval  Minimum time between writes in milliseconds
+   * @param capture   The captured process output
+   */
+  public StateInfoPublisher(StageStore store, String stage, long interval, OutputCapture capture) {
+    this.store = store;
+    this.stage = stage;
+    this.interval = interval;
+    this.capture = capture;
+  }
+
+  /**
+   * Starts publishing on the client's shared scheduler.
+   */
+  public synchronized void start() {
+    if (task == null) {
+      task = store.getClient().getScheduler().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Publishes the tail of the output if new lines arrived and it differs from what was last written.
+   */
+  public void run() {
+    String tail;
+    synchronized (this) {
+      long count = capture.getLineCount();
+      if (task == null || count == publishedCount) {
+        return;
+      }
+      publishedCount = count;
+      tail = capture.getTail(TAIL_LINES);
+      if (tail.equals(published)) {
+        return;
+      }
+      published = tail;
+    }
+    store.update(stage, NODE_STATE_INFO, tail);
+  }
+
+  /**
+   * Stops the periodic publishing and writes the final info if it has not been published yet.
+   * @param finalInfo The final info for the node; if null the last line of output is used
+   */
+  public void close(String finalInfo) throws KeeperException, InterruptedException {
+    synchronized (this) {
+      stop();
+      if (finalInfo == null) {
+        finalInfo = capture.getLastOutput();
+      }
+      if (finalInfo.length() == 0 || finalInfo.equals(published)) {
+        return;
+      }
+      published = finalInfo;
+    }
+    logger.debug(String.format("Publishing final state info {node=[%s], info=[%s]}", stage, finalInfo));
+    ZKClientBase.waitFor(store.update(stage, NODE_STATE_INFO, finalInfo));
+  }
+
+  /**
+   * Stops the periodic publishing without writing anything more.
+   */
+  public synchronized void stop() {
+    if (task != null) {
+      task.cancel(false);
+      task = null;
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package com.proquest.magnolia.statemgr.zkclient;
+
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import com.proquest.magnolia.statemgr.common.ZKMetrics;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Claims ready stages for this client in shared mode, where every registered client can run
+ * every stage. A stage is claimed by creating its ephemeral <code>/Claim</code> node; the client
+ * that creates it runs the stage and deletes the node once the stage has finished, and the node
+ * goes away by itself if the client dies first. A claim lost with an expired session is created
+ * again; if another client holds it by then the stage is stopped here.
+ *
+ * Each client advertises its free slots and load average in an ephemeral node under
+ * <code>/Clients</code>. A client that sees better placed clients (more free slots, then a
+ * lower load per CPU) waits for its rank times the claim delay before claiming, so a ready stage
+ * usually goes to the best placed client without any client-to-client coordination. A client
+ * never claims a stage it does not have the free slots for.
+ *
+ * The speculative attempt of a stage is claimed by writing the client id to the empty
+ * <code>/Speculate</code> node of the stage, requiring its first version, so only one client
+ * gets it.
+ */
+class WorkClaimer implements Watcher, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(WorkClaimer.class.getName());
+
+  private static final long ADVERTISE_INTERVAL = Long.getLong("statemgr.shared.advertiseInterval", 2000L);
+  private static final long CLAIM_DELAY = Long.getLong("statemgr.shared.claimDelay", 25L);
+  private static final int CPUS = Runtime.getRuntime().availableProcessors();
+  private static final AtomicInteger instances = new AtomicInteger(0);
+
+  private ZKClient zk;
+  private String id;
+  private String clientNode;
+  private volatile Map<String,ClientInfo> peers = Collections.emptyMap();
+  private volatile String advertised = null;
+  private ConcurrentMap<ProcessRunnerMgr,Boolean> pending = new ConcurrentHashMap<ProcessRunnerMgr, Boolean>();
+  private ConcurrentMap<ProcessRunnerMgr,Boolean> deferred = new ConcurrentHashMap<ProcessRunnerMgr, Boolean>();
+  private ConcurrentMap<String,ProcessRunnerMgr> waiting = new ConcurrentHashMap<String, ProcessRunnerMgr>();
+  private ConcurrentMap<String,Boolean> held = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * The advertised state of a client.
+   */
+  static class ClientInfo {
+    final String id;
+    final int free;
+    final double load;
+
+    ClientInfo(String id, int free, double load) {
+      this.id = id;
+      this.free = free;
+      this.load = load;
+    }
+
+    /**
+     * @return  true if a stage is better placed on this client than on the other one
+     */
+    boolean isBetterThan(ClientInfo other) {
+      if (free != other.free) {
+        return free > other.free;
+      }
+      if (load != other.load) {
+        return load < other.load;
+      }
+      return id.compareTo(other.id) < 0;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param zk  ZKClient reference
+   */
+  WorkClaimer(ZKClient zk) {
+    this.zk = zk;
+    // The JVM name is pid@host, which tells apart several clients on one host
+    String[] name = ManagementFactory.getRuntimeMXBean().getName().split("@");
+    String jvm = (name.length == 2) ? name[1] + "-" + name[0] : name[0];
+    int instance = instances.incrementAndGet();
+    this.id = (instance > 1) ? jvm + "-" + instance : jvm;
+    this.clientNode = NODE_CLIENTS + "/" + id;
+    zk.addWatch(this);
+  }
+
+  String getId() {
+    return id;
+  }
+
+  /**
+   * Registers this client and starts advertising its state.
+   */
+  void start() {
+    zk.ensurePathExists(NODE_CLIENTS);
+    zk.getAdmissionController().setReleaseListener(new Runnable() {
+      public void run() {
+        retryDeferred();
+      }
+    });
+    refresh();
+    zk.getScheduler().scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        zk.getWorkerPool().execute(new Runnable() {
+          public void run() {
+            refresh();
+          }
+        });
+      }
+    }, ADVERTISE_INTERVAL, ADVERTISE_INTERVAL, TimeUnit.MILLISECONDS);
+    logger.info(String.format("Registered for shared work {client=[%s]}", id));
+  }
+
+  /**
+   * Claims the stage of the manager once it is this client's turn, and hands it back to the
+   * manager if the claim succeeds. Stages already being claimed are ignored.
+   * @param mgr The manager of the ready stage
+   */
+  void claim(ProcessRunnerMgr mgr) {
+    if (pending.putIfAbsent(mgr, Boolean.TRUE) != null) {
+      return;
+    }
+    long delay = getRank(mgr.getProcess().getWeight()) * CLAIM_DELAY;
+    schedule(mgr, delay);
+  }
+
+  /**
+   * Gives up the claim of the stage, if this client holds it, and stops trying to claim it.
+   * @param mgr The manager of the stage
+   */
+  void release(ProcessRunnerMgr mgr) {
+    final String claimNode = getClaimNode(mgr);
+    pending.remove(mgr);
+    if (waiting.remove(claimNode) != null) {
+      zk.removeWatch(claimNode, this);
+    }
+    if (held.remove(claimNode) != null) {
+      zk.releaseEphemeral(claimNode);
+      zk.getZookeeper().delete(claimNode, -1, new AsyncCallback.VoidCallback() {
+        public void processResult(int rc, String path, Object ctx) {
+          KeeperException.Code code = KeeperException.Code.get(rc);
+          if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+            logger.warn(String.format("Unable to release the claim {node=[%s], rc=[%s]}", path, code));
+          }
+        }
+      }, null);
+      logger.info(String.format("Released the claim {node=[%s]}", claimNode));
+    }
+  }
+
+  /**
+   * Claims the speculative attempt of the stage of the manager, if it fits on this host, and
+   * hands it to the manager if the claim succeeds.
+   * @param mgr The manager of the stage running long on another client
+   */
+  void speculate(final ProcessRunnerMgr mgr) {
+    AdmissionController admission = zk.getAdmissionController();
+    if (admission.getSlots() - admission.getUsedSlots() < mgr.getProcess().getWeight()) {
+      return;
+    }
+    zk.getZookeeper().setData(mgr.getProcess().getSubNode(NODE_SPECULATE), ZKClientBase.encode(id), 0,
+        new AsyncCallback.StatCallback() {
+          public void processResult(int rc, String path, Object ctx, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK) {
+              logger.info(String.format("Claimed the speculative attempt {node=[%s], client=[%s]}", mgr.getProcess().getNode(), id));
+              zk.getWorkerPool().execute(new Runnable() {
+                public void run() {
+                  mgr.speculationClaimed();
+                }
+              });
+            } else if (code != KeeperException.Code.BADVERSION && code != KeeperException.Code.NONODE) {
+              logger.warn(String.format("Unable to claim the speculative attempt {node=[%s], rc=[%s]}", path, code));
+            }
+          }
+        }, null);
+  }
+
+  private void schedule(final ProcessRunnerMgr mgr, long delay) {
+    zk.getScheduler().schedule(new Runnable() {
+      public void run() {
+        zk.getWorkerPool().execute(new Runnable() {
+          public void run() {
+            attempt(mgr);
+          }
+        });
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Tries again to claim the stages that did not fit on this host.
+   */
+  private void retryDeferred() {
+    for (ProcessRunnerMgr mgr : deferred.keySet()) {
+      if (deferred.remove(mgr) != null) {
+        schedule(mgr, getRank(mgr.getProcess().getWeight()) * CLAIM_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Tries to create the claim node of the stage, if it is still ready and fits on this host.
+   */
+  private void attempt(final ProcessRunnerMgr mgr) {
+    if (!pending.containsKey(mgr)) {
+      return;
+    }
+    if (!mgr.isReady()) {
+      pending.remove(mgr);
+      return;
+    }
+    AdmissionController admission = zk.getAdmissionController();
+    if (admission.getSlots() - admission.getUsedSlots() < mgr.getProcess().getWeight()) {
+      // Leave the stage to other clients for now, and try again once a slot frees up here
+      deferred.put(mgr, Boolean.TRUE);
+      zk.getScheduler().schedule(new Runnable() {
+        public void run() {
+          if (deferred.remove(mgr) != null) {
+            schedule(mgr, 0);
+          }
+        }
+      }, ADVERTISE_INTERVAL, TimeUnit.MILLISECONDS);
+      return;
+    }
+    String claimNode = getClaimNode(mgr);
+    zk.getZookeeper().create(claimNode, ZKClientBase.encode(id), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL,
+        new AsyncCallback.StringCallback() {
+          public void processResult(int rc, String path, Object ctx, String name) {
+            created(mgr, path, KeeperException.Code.get(rc));
+          }
+        }, null);
+  }
+
+  /**
+   * Handles the result of creating the claim node. Runs on the ZooKeeper event thread.
+   */
+  private void created(final ProcessRunnerMgr mgr, final String claimNode, KeeperException.Code code) {
+    switch (code) {
+      case OK:
+        claimed(mgr, claimNode);
+        break;
+      case NODEEXISTS:
+        // Claimed by another client (or by this one before a reconnect); wait for it to go away
+        waiting.put(claimNode, mgr);
+        zk.addWatch(claimNode, this);
+        zk.getZookeeper().getData(claimNode, true, new AsyncCallback.DataCallback() {
+          public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK && id.equals(ZKClientBase.decode(data))) {
+              waiting.remove(claimNode);
+              zk.removeWatch(claimNode, WorkClaimer.this);
+              claimed(mgr, claimNode);
+            } else if (code != KeeperException.Code.OK) {
+              // Gone already, or the read failed; try again
+              waiting.remove(claimNode);
+              schedule(mgr, 0);
+            }
+          }
+        }, null);
+        break;
+      case NONODE:
+        // The stage node does not exist yet
+        zk.getWorkerPool().execute(new Runnable() {
+          public void run() {
+            zk.ensurePathExists(mgr.getProcess().getNode());
+            attempt(mgr);
+          }
+        });
+        break;
+      default:
+        logger.info(String.format("Retrying the claim {node=[%s], rc=[%s]}", claimNode, code));
+        schedule(mgr, zk.getRetryDelay());
+    }
+  }
+
+  private void claimed(final ProcessRunnerMgr mgr, String claimNode) {
+    pending.remove(mgr);
+    held.put(claimNode, Boolean.TRUE);
+    zk.ownEphemeral(claimNode, ZKClientBase.encode(id), new ZKClientBase.EphemeralListener() {
+      public void ephemeralLost(String path) {
+        if (held.remove(path) != null) {
+          mgr.claimLost();
+        }
+      }
+    });
+    logger.info(String.format("Claimed the stage {node=[%s], client=[%s]}", mgr.getProcess().getNode(), id));
+    zk.getWorkerPool().execute(new Runnable() {
+      public void run() {
+        mgr.claimed();
+      }
+    });
+  }
+
+  /**
+   * Retries the claim of a stage when the claim node of another client changes or goes away,
+   * or once an expired session has been replaced. The client node and the claims held are
+   * created again by the client along with its other ephemeral nodes.
+   * @param event The event
+   */
+  public void process(WatchedEvent event) {
+    if (event.getType() == Event.EventType.None) {
+      return;
+    }
+    ProcessRunnerMgr mgr = waiting.remove(event.getPath());
+    if (mgr != null) {
+      zk.removeWatch(event.getPath(), this);
+      schedule(mgr, 0);
+    }
+  }
+
+  /**
+   * @param weight  The slots the stage takes up
+   * @return The number of other clients that the stage is better placed on
+   */
+  private int getRank(int weight) {
+    ClientInfo me = getOwnInfo();
+    int rank = 0;
+    for (ClientInfo peer : peers.values()) {
+      if (!peer.id.equals(id) && peer.free >= weight && peer.isBetterThan(me)) {
+        rank++;
+      }
+    }
+    return rank;
+  }
+
+  private ClientInfo getOwnInfo() {
+    AdmissionController admission = zk.getAdmissionController();
+    int used = admission.getUsedSlots() + admission.getQueueLength();
+    // A host with unlimited slots advertises its CPUs
+    int slots = (admission.getSlots() == Integer.MAX_VALUE) ? CPUS : admission.getSlots();
+    double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    return new ClientInfo(id, Math.max(slots - used, 0), (load >= 0) ? load / CPUS : 0.0);
+  }
+
+  /**
+   * Advertises the state of this client, when it has changed, and reads that of the others.
+   */
+  private void refresh() {
+    ClientInfo me = getOwnInfo();
+    String data;
+    try {
+      JSONObject obj = new JSONObject();
+      obj.put("free", me.free);
+      // Rounded so small changes do not cause a write
+      obj.put("load", Math.round(me.load * 10) / 10.0);
+      data = obj.toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    if (!data.equals(advertised)) {
+      byte[] bytes = ZKClientBase.encode(data);
+      zk.ensureExists(clientNode, bytes, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+      // Advertised again as soon as an expired session has been replaced
+      zk.ownEphemeral(clientNode, bytes, null);
+      advertised = data;
+    }
+
+    try {
+      List<String> ids;
+      long start = System.nanoTime();
+      try {
+        ids = zk.getZookeeper().getChildren(NODE_CLIENTS, false);
+        zk.getMetrics().record(ZKMetrics.Op.GetChildren, start, 0);
+      } catch (KeeperException e) {
+        zk.getMetrics().record(ZKMetrics.Op.GetChildren, start, e.code().intValue());
+        throw e;
+      }
+      List<String> paths = new ArrayList<String>(ids.size());
+      for (String peer : ids) {
+        paths.add(NODE_CLIENTS + "/" + peer);
+      }
+      List<String> values = ZKClientBase.waitFor(zk.getDataAsync(paths));
+      Map<String,ClientInfo> infos = new HashMap<String, ClientInfo>();
+      for (int i = 0; i < ids.size(); i++) {
+        if (values.get(i).length() > 0) {
+          JSONObject obj = new JSONObject(values.get(i));
+          infos.put(ids.get(i), new ClientInfo(ids.get(i), obj.optInt("free"), obj.optDouble("load", 0.0)));
+        }
+      }
+      peers = infos;
+    } catch (Exception e) {
+      logger.warn("Unable to read the registered clients", e);
+    }
+  }
+
+  private static String getClaimNode(ProcessRunnerMgr mgr) {
+    return mgr.getProcess().getNode() + NODE_CLAIM;
+  }
+}
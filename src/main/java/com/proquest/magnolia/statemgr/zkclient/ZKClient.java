@@ -1,9 +1,16 @@
 package com.proquest.magnolia.statemgr.zkclient;
 
+import com.proquest.magnolia.statemgr.common.Jmx;
 import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.List;
 
@@ -11,23 +18,34 @@ import java.util.List;
  * ZK Client application used to manage and launch multiple applications based
  * on the configuration in the ZK service nodes.
  */
-public class ZKClient extends ZKClientBase {
+public class ZKClient extends ZKClientBase implements ZKConstants {
 
   private static final Logger logger = Logger.getLogger(ZKClient.class.getName());
 
+  private AdmissionController admissionController = new AdmissionController(0);
+  private ObjectName admissionName = null;
+
   /**
    * Main entry point.
    * @param args
    * <code>
    *          args[0] - The ZK service connection parameters ("127.0.0.1:2181,127.0.0.1:2182")
-   *          args[1] - The client configuration file
+   *          args[1] - The client configuration file, or
+   *                    -shared [slots] to run the stages published to ZK, or
+   *                    -publish file to publish the stages of a client configuration file to ZK
    * </code>
    * @throws Exception
    */
   public static void main(String[] args) throws Exception {
     PropertyConfigurator.configure("./log4j.properties");
     ZKClient zkClient = new ZKClient(args[0]);
-    zkClient.execute(args[1]);
+    if ("-publish".equals(args[1])) {
+      zkClient.publish(args[2]);
+    } else if ("-shared".equals(args[1])) {
+      zkClient.executeShared((args.length > 2) ? Integer.parseInt(args[2]) : 0);
+    } else {
+      zkClient.execute(args[1]);
+    }
   }
 
   /**
@@ -40,30 +58,50 @@ public class ZKClient extends ZKClientBase {
   }
 
   /**
-   * Reads in the list of processes to be run and launches
-   * a separate manager thread for each so they are run as the
-   * dependencies are completed.
+   * @return  The controller limiting how many processes run at once on this host
+   */
+  public AdmissionController getAdmissionController() {
+    return admissionController;
+  }
+
+  /**
+   * Replaces the admission controller, and its MBean, before any process is started.
+   */
+  private synchronized void setAdmissionController(AdmissionController controller) {
+    Jmx.unregister(admissionName);
+    admissionController = controller;
+    admissionName = Jmx.register(controller, "Admission", null);
+  }
+
+  @Override
+  protected synchronized void doClose() {
+    Jmx.unregister(admissionName);
+    admissionName = null;
+  }
+
+  /**
+   * Starts the processes and waits for the user to type quit.
    *
    * @param processCfgPath  The client configuration file
    * @throws Exception
    */
   public void execute(String processCfgPath) throws Exception {
+    start(processCfgPath);
+    waitForQuit();
+  }
 
-    // Read in the list of processes to be run on this machine
-    logger.info("Reading in configuration file...");
-    ProcessFileReader pfr = new ProcessFileReader();
-    List<ZKProcess> zkProcesses = pfr.read(processCfgPath);
+  /**
+   * Runs the published stages in shared mode and waits for the user to type quit.
+   *
+   * @param slots The number of slots on this host; 0 means unlimited
+   * @throws Exception
+   */
+  public void executeShared(int slots) throws Exception {
+    startShared(slots);
+    waitForQuit();
+  }
 
-    // Launch a thread for each process to be run
-    logger.info("Launching processes read from file...");
-    for (ZKProcess proc : zkProcesses) {
-      ProcessRunnerMgr executor = new ProcessRunnerMgr(this, proc);
-      Thread t = new Thread(executor);
-      t.setDaemon(true);
-      t.setName(proc.getNode());
-      t.start();
-    }
-    
+  private void waitForQuit() throws IOException {
     // Wait for the user to type quit
     System.out.println("Type quit to stop processing.");
     byte[] b = new byte[80];
@@ -74,4 +112,98 @@ public class ZKClient extends ZKClientBase {
       }
     }
   }
+
+  /**
+   * Reads in the list of processes to be run and starts a manager
+   * for each so they are run as the dependencies are completed. The
+   * managers are event driven and share the client's thread pools,
+   * so this returns as soon as they have been started.
+   *
+   * @param processCfgPath  The client configuration file
+   * @throws Exception
+   */
+  public void start(String processCfgPath) throws Exception {
+
+    // Read in the list of processes to be run on this machine
+    logger.info("Reading in configuration file...");
+    ProcessFileReader pfr = new ProcessFileReader();
+    List<ZKProcess> zkProcesses = pfr.read(processCfgPath);
+    openJournal("client-" + new File(processCfgPath).getName());
+    setAdmissionController(new AdmissionController(pfr.getSlots()));
+
+    // Start a manager for each process to be run
+    logger.info("Launching processes read from file...");
+    for (ZKProcess proc : zkProcesses) {
+      startProcess(proc, null);
+    }
+  }
+
+  /**
+   * Publishes the processes of a client configuration file as the stage definitions of
+   * shared mode, replacing the ones published before. Running clients pick up the new
+   * definitions when they are restarted.
+   *
+   * @param processCfgPath  The client configuration file
+   * @throws Exception
+   */
+  public void publish(String processCfgPath) throws Exception {
+    // Parsed first so a broken file is never published
+    List<ZKProcess> zkProcesses = new ProcessFileReader().read(processCfgPath);
+    byte[] definitions = readFile(new File(processCfgPath));
+    setData(NODE_STAGES, decode(definitions));
+    logger.info(String.format("Published the stage definitions {stages=[%d]}", zkProcesses.size()));
+  }
+
+  /**
+   * Starts a manager for every stage published to ZK. Any registered client may run any of
+   * them: a ready stage is run by the client that claims it first, and better placed clients
+   * get to claim first.
+   *
+   * @param slots The number of slots on this host; 0 means unlimited
+   * @throws Exception
+   */
+  public void startShared(int slots) throws Exception {
+    logger.info("Reading the published stage definitions...");
+    String definitions = getData(NODE_STAGES);
+    if (definitions.length() == 0) {
+      throw new IllegalStateException("No stage definitions have been published to " + NODE_STAGES);
+    }
+    List<ZKProcess> zkProcesses = new ProcessFileReader().read(new ByteArrayInputStream(encode(definitions)));
+    openJournal("shared");
+    setAdmissionController(new AdmissionController(slots));
+
+    WorkClaimer claimer = new WorkClaimer(this);
+    claimer.start();
+    logger.info(String.format("Launching shared processes {stages=[%d], client=[%s]}", zkProcesses.size(), claimer.getId()));
+    for (ZKProcess proc : zkProcesses) {
+      startProcess(proc, claimer);
+    }
+  }
+
+  /**
+   * Starts the manager of a process, or of every instance of a matrix stage along with
+   * the join that sets the state of the stage from the states of its instances. Of the
+   * clients running a matrix stage only one joins it at a time.
+   */
+  private void startProcess(ZKProcess proc, WorkClaimer claimer) throws Exception {
+    if (proc.isMatrix()) {
+      for (String value : proc.getMatrix()) {
+        new ProcessRunnerMgr(this, proc.getMatrixInstance(value), claimer).start();
+      }
+      new MatrixJoin(this, proc).start();
+    } else {
+      new ProcessRunnerMgr(this, proc, claimer).start();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] b = new byte[(int) file.length()];
+    DataInputStream is = new DataInputStream(new FileInputStream(file));
+    try {
+      is.readFully(b);
+    } finally {
+      is.close();
+    }
+    return b;
+  }
 }
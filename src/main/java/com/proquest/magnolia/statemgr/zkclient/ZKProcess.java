@@ -2,7 +2,9 @@ package com.proquest.magnolia.statemgr.zkclient;
 
 import com.proquest.magnolia.statemgr.common.ZKConstants;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -10,15 +12,46 @@ import java.util.Set;
  */
 public class ZKProcess {
 
+  /**
+   * Replaced by the matrix value in the path, arguments and inputs of a matrix instance.
+   */
+  public static final String MATRIX_VARIABLE = "${matrix}";
+
   private String processPath = "";
   private String args = "";
   private ProcessType processType = ProcessType.Java;
+  private String mainClass = null;
+  private String classpath = "";
   private Set<String> dependencyNodes = new HashSet<String>();
   private Set<String> dependencyStateNodes = new HashSet<String>();
   private String node = "";
+  private Integer weight = null;
+  private long pollInterval = Long.getLong("statemgr.poll.interval", 5000L);
+  private long pollMaxInterval = Long.getLong("statemgr.poll.maxInterval", 300000L);
+  private long stateInfoInterval = Long.getLong("statemgr.stateInfo.interval", 5000L);
+  private long timeout = Long.getLong("statemgr.timeout", 0L);
+  private long expectedDuration = 0;
+  private boolean idempotent = false;
+  private List<String> inputFiles = new ArrayList<String>();
+  private List<String> inputDirs = new ArrayList<String>();
+  private List<String> inputEnv = new ArrayList<String>();
+  private List<String> matrix = new ArrayList<String>();
 
   enum ProcessType {
-    Java, Shell, EXE, Gradle
+    Java, Shell, EXE, Gradle, Poll;
+
+    /**
+     * @return  The process type with the specified name, ignoring case
+     * @throws IllegalArgumentException If there is no such process type
+     */
+    static ProcessType fromString(String name) {
+      for (ProcessType type : values()) {
+        if (type.name().equalsIgnoreCase(name.trim())) {
+          return type;
+        }
+      }
+      throw new IllegalArgumentException("Unknown process type: " + name);
+    }
   }
 
   public String getProcessPath() {
@@ -45,6 +78,37 @@ public class ZKProcess {
     this.processType = processType;
   }
 
+  /**
+   * @return  The main class of a Java process that runs inside the client JVM, or null
+   *          if the process is launched as a separate process.
+   */
+  public String getMainClass() {
+    return mainClass;
+  }
+
+  public void setMainClass(String mainClass) {
+    this.mainClass = mainClass;
+  }
+
+  /**
+   * @return  The classpath of a Java process that runs inside the client JVM, separated by
+   *          the platform path separator.
+   */
+  public String getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(String classpath) {
+    this.classpath = classpath;
+  }
+
+  /**
+   * @return  true if the process is a Java process with a main class, run inside the client JVM
+   */
+  public boolean runsInJvm() {
+    return processType == ProcessType.Java && mainClass != null;
+  }
+
   public Set<String> getDependencyNodes() {
     return dependencyNodes;
   }
@@ -93,4 +157,185 @@ public class ZKProcess {
   public void setNode(String node) {
     this.node = node;
   }
+
+  /**
+   * @return  The number of host slots this process takes up while it runs.
+   */
+  public int getWeight() {
+    if (weight != null) {
+      return weight;
+    }
+    // A poll process only runs briefly to probe, so by default it takes up no slots
+    return (processType == ProcessType.Poll) ? 0 : 1;
+  }
+
+  public void setWeight(int weight) {
+    this.weight = weight;
+  }
+
+  /**
+   * @return  The time in milliseconds between the first probes of a poll process.
+   */
+  public long getPollInterval() {
+    return pollInterval;
+  }
+
+  public void setPollInterval(long pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * @return  The longest time in milliseconds between probes of a poll process; the
+   *          interval grows towards it while the probe output does not change.
+   */
+  public long getPollMaxInterval() {
+    return pollMaxInterval;
+  }
+
+  public void setPollMaxInterval(long pollMaxInterval) {
+    this.pollMaxInterval = pollMaxInterval;
+  }
+
+  /**
+   * @return  The minimum time in milliseconds between writes of the process output
+   *          to the StateInfo node.
+   */
+  public long getStateInfoInterval() {
+    return stateInfoInterval;
+  }
+
+  public void setStateInfoInterval(long stateInfoInterval) {
+    this.stateInfoInterval = stateInfoInterval;
+  }
+
+  /**
+   * @return  The time in milliseconds the process may run before it is stopped and fails,
+   *          or 0 if it may run for as long as it takes.
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * @return  The time in milliseconds the process is expected to run, or 0 to expect the
+   *          duration of its last successful run.
+   */
+  public long getExpectedDuration() {
+    return expectedDuration;
+  }
+
+  public void setExpectedDuration(long expectedDuration) {
+    this.expectedDuration = expectedDuration;
+  }
+
+  /**
+   * @return  true if the process may safely run more than once at a time, in which case a
+   *          speculative attempt may be started on another client when it runs long.
+   */
+  public boolean isIdempotent() {
+    return idempotent;
+  }
+
+  public void setIdempotent(boolean idempotent) {
+    this.idempotent = idempotent;
+  }
+
+  /**
+   * @return  true if the inputs of the process are declared, in which case the process
+   *          is skipped when they have not changed since its last success.
+   */
+  public boolean hasInputs() {
+    return !inputFiles.isEmpty() || !inputDirs.isEmpty() || !inputEnv.isEmpty();
+  }
+
+  public List<String> getInputFiles() {
+    return inputFiles;
+  }
+
+  public void addInputFile(String file) {
+    this.inputFiles.add(file);
+  }
+
+  public List<String> getInputDirs() {
+    return inputDirs;
+  }
+
+  public void addInputDir(String dir) {
+    this.inputDirs.add(dir);
+  }
+
+  /**
+   * @return  The names of the environment variables the process reads
+   */
+  public List<String> getInputEnv() {
+    return inputEnv;
+  }
+
+  public void addInputEnv(String name) {
+    this.inputEnv.add(name);
+  }
+
+  /**
+   * @return  true if the process is a matrix stage, which runs as one instance per matrix value
+   */
+  public boolean isMatrix() {
+    return !matrix.isEmpty();
+  }
+
+  public List<String> getMatrix() {
+    return matrix;
+  }
+
+  /**
+   * Adds matrix values.
+   * @param values  Comma separated values
+   */
+  public void addMatrixValues(String values) {
+    for (String value : values.split(",")) {
+      if (value.trim().length() > 0) {
+        this.matrix.add(value.trim());
+      }
+    }
+  }
+
+  /**
+   * Creates the instance of a matrix stage for one of its values. The instance node is
+   * <code>/&lt;node&gt;/&lt;value&gt;</code>, and the value replaces ${matrix} in the path, arguments
+   * and inputs. Everything else is the same as the matrix stage.
+   * @param value The matrix value
+   * @return The instance
+   */
+  public ZKProcess getMatrixInstance(String value) {
+    ZKProcess inst = new ZKProcess();
+    inst.processPath = substitute(processPath, value);
+    inst.args = substitute(args, value);
+    inst.processType = processType;
+    inst.mainClass = mainClass;
+    inst.classpath = substitute(classpath, value);
+    inst.setDependencyNodes(dependencyNodes);
+    inst.node = node + "/" + value;
+    inst.weight = weight;
+    inst.pollInterval = pollInterval;
+    inst.pollMaxInterval = pollMaxInterval;
+    inst.stateInfoInterval = stateInfoInterval;
+    inst.timeout = timeout;
+    inst.expectedDuration = expectedDuration;
+    inst.idempotent = idempotent;
+    for (String file : inputFiles) {
+      inst.inputFiles.add(substitute(file, value));
+    }
+    for (String dir : inputDirs) {
+      inst.inputDirs.add(substitute(dir, value));
+    }
+    inst.inputEnv.addAll(inputEnv);
+    return inst;
+  }
+
+  private static String substitute(String s, String value) {
+    return (s != null) ? s.replace(MATRIX_VARIABLE, value) : null;
+  }
 }
@@ -0,0 +1,325 @@
+package com.proquest.magnolia.statemgr.zkmaster;
+
+import com.proquest.magnolia.statemgr.common.StageRecord;
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import com.proquest.magnolia.statemgr.zkclient.ZKProcess;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.gantt.Task;
+import org.jfree.data.gantt.TaskSeries;
+import org.jfree.data.gantt.TaskSeriesCollection;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Builds a timing report of the last run from the stage timestamps and the dependency graph of
+ * the client configuration files. The critical path and the slack of every stage are computed
+ * from the actual stage durations, and a Gantt chart of the run is rendered alongside a text summary.
+ */
+public class RunReport implements ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(RunReport.class.getName());
+
+  public static final String REPORT_FILE  = "run-report.txt";
+  public static final String CHART_FILE   = "run-gantt.png";
+
+  private ZKClientBase zk;
+  private Properties nodeCfg;
+  private Map<String,Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+  private Map<String,StageTiming> timings = new LinkedHashMap<String, StageTiming>();
+  private List<String> criticalPath = new ArrayList<String>();
+  private long origin = 0;
+  private long actualMakespan = 0;
+  private long criticalMakespan = 0;
+
+  /**
+   * The timing of a single stage. All of the offsets are in milliseconds from the start of the run.
+   */
+  static class StageTiming {
+    String node;
+    String description;
+    String state;
+    Date start;
+    Date end;
+    long duration;
+    long earliestStart;
+    long earliestFinish;
+    long latestStart;
+    long latestFinish;
+    long wait;
+    boolean critical;
+
+    boolean isComplete() {
+      return start != null && end != null;
+    }
+
+    long getSlack() {
+      return latestStart - earliestStart;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param zk        ZKClient reference
+   * @param nodeCfg   The master node configuration (node to description)
+   * @param processes The processes of all the client configuration files
+   */
+  public RunReport(ZKClientBase zk, Properties nodeCfg, List<ZKProcess> processes) {
+    this.zk = zk;
+    this.nodeCfg = nodeCfg;
+    for (ZKProcess proc : processes) {
+      Set<String> deps = new HashSet<String>(proc.getDependencyNodes());
+      deps.remove(NODE_MASTER.substring(0, NODE_MASTER.length() - NODE_STATE.length()));
+      dependencies.put(proc.getNode(), deps);
+    }
+  }
+
+  /**
+   * Reads the stage timings, analyzes them and writes the text summary and Gantt chart.
+   * @param outputDir The directory to write the report files to
+   * @return The text summary
+   */
+  public String generate(File outputDir) throws KeeperException, InterruptedException, IOException {
+    load();
+    analyze();
+    String summary = getSummary();
+
+    outputDir.mkdirs();
+    Writer w = new FileWriter(new File(outputDir, REPORT_FILE));
+    try {
+      w.write(summary);
+    } finally {
+      w.close();
+    }
+    renderChart(new File(outputDir, CHART_FILE));
+    logger.info(String.format("Run report written {dir=[%s]}", outputDir.getAbsolutePath()));
+    return summary;
+  }
+
+  /**
+   * Reads the state and timestamps of every stage as one pipelined batch.
+   */
+  private void load() throws KeeperException, InterruptedException {
+    List<String> nodes = new ArrayList<String>();
+    for (Object key : nodeCfg.keySet()) {
+      nodes.add((String) key);
+    }
+    Collections.sort(nodes);
+
+    List<StageRecord> records = new StageStore(zk).read(nodes);
+
+    SimpleDateFormat sdf = new SimpleDateFormat(TIMESTAMP_FORMAT);
+    for (int i = 0; i < nodes.size(); i++) {
+      StageRecord record = records.get(i);
+      StageTiming t = new StageTiming();
+      t.node = nodes.get(i);
+      t.description = nodeCfg.getProperty(t.node);
+      t.state = record.get(NODE_STATE);
+      t.start = parse(sdf, record.get(NODE_TIME_START));
+      t.end = parse(sdf, record.get(NODE_TIME_END));
+      if (t.isComplete()) {
+        t.duration = Math.max(0, t.end.getTime() - t.start.getTime());
+      }
+      timings.put(t.node, t);
+    }
+  }
+
+  private static Date parse(SimpleDateFormat sdf, String s) {
+    if (s == null || s.length() == 0) {
+      return null;
+    }
+    try {
+      return sdf.parse(s);
+    } catch (ParseException e) {
+      logger.warn(String.format("Invalid timestamp {value=[%s]}", s));
+      return null;
+    }
+  }
+
+  /**
+   * Runs the critical path analysis over the completed stages.
+   */
+  void analyze() {
+    List<StageTiming> order = getTopologicalOrder();
+    if (order.isEmpty()) {
+      return;
+    }
+
+    origin = Long.MAX_VALUE;
+    long lastEnd = Long.MIN_VALUE;
+    for (StageTiming t : order) {
+      origin = Math.min(origin, t.start.getTime());
+      lastEnd = Math.max(lastEnd, t.end.getTime());
+    }
+    actualMakespan = lastEnd - origin;
+
+    // Forward pass: earliest start/finish if every stage started as soon as its dependencies finished
+    for (StageTiming t : order) {
+      long es = 0;
+      long depEnd = origin;
+      for (StageTiming dep : getDependencies(t)) {
+        es = Math.max(es, dep.earliestFinish);
+        depEnd = Math.max(depEnd, dep.end.getTime());
+      }
+      t.earliestStart = es;
+      t.earliestFinish = es + t.duration;
+      t.wait = Math.max(0, t.start.getTime() - depEnd);
+      criticalMakespan = Math.max(criticalMakespan, t.earliestFinish);
+    }
+
+    // Backward pass: latest start/finish that does not delay the end of the run
+    for (int i = order.size() - 1; i >= 0; i--) {
+      StageTiming t = order.get(i);
+      long lf = criticalMakespan;
+      for (StageTiming succ : order) {
+        if (getDependencies(succ).contains(t)) {
+          lf = Math.min(lf, succ.latestStart);
+        }
+      }
+      t.latestFinish = lf;
+      t.latestStart = lf - t.duration;
+    }
+
+    // Walk back from the stage that finishes last through the dependency that finishes last
+    StageTiming current = null;
+    for (StageTiming t : order) {
+      if (current == null || t.earliestFinish > current.earliestFinish) {
+        current = t;
+      }
+    }
+    while (current != null) {
+      current.critical = true;
+      criticalPath.add(0, current.node);
+      StageTiming next = null;
+      for (StageTiming dep : getDependencies(current)) {
+        if (next == null || dep.earliestFinish > next.earliestFinish) {
+          next = dep;
+        }
+      }
+      current = next;
+    }
+  }
+
+  /**
+   * @return  The completed stages of the run in dependency order
+   */
+  private List<StageTiming> getTopologicalOrder() {
+    List<StageTiming> order = new ArrayList<StageTiming>();
+    Set<String> visited = new HashSet<String>();
+    for (StageTiming t : timings.values()) {
+      visit(t, visited, new HashSet<String>(), order);
+    }
+    return order;
+  }
+
+  private void visit(StageTiming t, Set<String> visited, Set<String> path, List<StageTiming> order) {
+    if (!t.isComplete() || visited.contains(t.node)) {
+      return;
+    }
+    if (!path.add(t.node)) {
+      logger.warn(String.format("Dependency cycle detected {node=[%s]}", t.node));
+      return;
+    }
+    for (StageTiming dep : getDependencies(t)) {
+      visit(dep, visited, path, order);
+    }
+    path.remove(t.node);
+    visited.add(t.node);
+    order.add(t);
+  }
+
+  /**
+   * @return  The completed stages the specified stage depends on
+   */
+  private List<StageTiming> getDependencies(StageTiming t) {
+    List<StageTiming> deps = new ArrayList<StageTiming>();
+    Set<String> depNodes = dependencies.get(t.node);
+    if (depNodes != null) {
+      for (String depNode : depNodes) {
+        StageTiming dep = timings.get(depNode);
+        if (dep != null && dep.isComplete()) {
+          deps.add(dep);
+        }
+      }
+    }
+    return deps;
+  }
+
+  /**
+   * @return  The text summary of the analysis
+   */
+  String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Run makespan: %s (critical path: %s, scheduling overhead: %s)%n",
+        formatDuration(actualMakespan), formatDuration(criticalMakespan), formatDuration(actualMakespan - criticalMakespan)));
+    sb.append(String.format("Critical path: %s%n%n", criticalPath));
+    sb.append(String.format("%-30s %-12s %10s %10s %10s %10s  %s%n", "Stage", "State", "Start", "Duration", "Wait", "Slack", "Critical"));
+
+    List<StageTiming> sorted = new ArrayList<StageTiming>(timings.values());
+    Collections.sort(sorted, new Comparator<StageTiming>() {
+      public int compare(StageTiming a, StageTiming b) {
+        long sa = (a.start != null) ? a.start.getTime() : Long.MAX_VALUE;
+        long sb = (b.start != null) ? b.start.getTime() : Long.MAX_VALUE;
+        return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+      }
+    });
+    for (StageTiming t : sorted) {
+      if (t.isComplete()) {
+        sb.append(String.format("%-30s %-12s %10s %10s %10s %10s  %s%n", t.node, t.state,
+            formatDuration(t.start.getTime() - origin), formatDuration(t.duration), formatDuration(t.wait),
+            formatDuration(t.getSlack()), t.critical ? "*" : ""));
+      } else {
+        sb.append(String.format("%-30s %-12s %10s%n", t.node, t.state, "-"));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renders the completed stages as a Gantt chart, with the critical path as a second series.
+   */
+  private void renderChart(File file) throws IOException {
+    TaskSeries stages = new TaskSeries("Stage");
+    TaskSeries critical = new TaskSeries("Critical path");
+    for (StageTiming t : timings.values()) {
+      if (t.isComplete()) {
+        String label = (t.description != null) ? t.description : t.node;
+        stages.add(new Task(label, t.start, t.end));
+        if (t.critical) {
+          critical.add(new Task(label, t.start, t.end));
+        }
+      }
+    }
+    TaskSeriesCollection dataset = new TaskSeriesCollection();
+    dataset.add(stages);
+    dataset.add(critical);
+
+    JFreeChart chart = ChartFactory.createGanttChart("Run timing", "Stage", "Time", dataset, true, false, false);
+    ChartUtilities.saveChartAsPNG(file, chart, 1200, Math.max(300, 60 + 30 * timings.size()));
+  }
+
+  private static String formatDuration(long ms) {
+    long s = ms / 1000;
+    return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+  }
+}
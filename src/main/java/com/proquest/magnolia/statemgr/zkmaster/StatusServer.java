@@ -0,0 +1,276 @@
+package com.proquest.magnolia.statemgr.zkmaster;
+
+import com.proquest.magnolia.statemgr.common.StateMirror;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the state of the pipeline over HTTP from the master's {@link StateMirror}, so status
+ * checks never read from ZK. The endpoints are:
+ * <ul>
+ *   <li><code>/status</code> - every stage with its state, info and timings</li>
+ *   <li><code>/changes?since=zxid[&amp;timeout=ms]</code> - only the stages changed after the zxid;
+ *       if there are none the request is held until a change arrives or the timeout expires</li>
+ * </ul>
+ * Both return the zxid of the last change seen as <code>zxid</code>, to be passed back as
+ * <code>since</code>. Held requests take no thread; they are answered from the mirror's listener.
+ * The server is not authenticated, so it only listens on loopback unless
+ * <code>statemgr.http.bind</code> names another address.
+ */
+public class StatusServer implements StateMirror.Listener, ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(StatusServer.class.getName());
+
+  private static final long MAX_POLL_TIMEOUT = Long.getLong("statemgr.http.pollTimeout", 30000L);
+  private static final String BIND_ADDRESS = System.getProperty("statemgr.http.bind", "127.0.0.1");
+
+  private ZKClientBase zk;
+  private StateMirror mirror;
+  private HttpServer server;
+  private final List<Poll> polls = new ArrayList<Poll>();
+  private final AtomicLong lastZxid = new AtomicLong(0);
+
+  /**
+   * A held <code>/changes</code> request.
+   */
+  private class Poll {
+    final HttpExchange exchange;
+    final long since;
+    ScheduledFuture<?> expiry;
+
+    Poll(HttpExchange exchange, long since) {
+      this.exchange = exchange;
+      this.since = since;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param zk      ZKClient reference
+   * @param mirror  The mirror of the stage states
+   */
+  public StatusServer(ZKClientBase zk, StateMirror mirror) {
+    this.zk = zk;
+    this.mirror = mirror;
+  }
+
+  /**
+   * Starts listening; requests are handled on the client's worker pool.
+   * @param port  The port to listen on, or 0 for any free port
+   * @throws IOException
+   */
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(BIND_ADDRESS, port), 0);
+    server.createContext("/status", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, toJson(Long.MIN_VALUE));
+      }
+    });
+    server.createContext("/changes", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        changes(exchange);
+      }
+    });
+    server.setExecutor(zk.getWorkerPool());
+    mirror.addListener(this);
+    // Only the changes after this are tracked, so the changes before are scanned once
+    for (String stage : mirror.getStages()) {
+      advance(mirror.getStageZxid(stage));
+    }
+    server.start();
+    logger.info(String.format("Serving the pipeline status {address=[%s], port=[%d]}", BIND_ADDRESS, getPort()));
+  }
+
+  /**
+   * @return  The port listened on
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops listening and answers the held requests.
+   */
+  public void stop() {
+    List<Poll> held;
+    synchronized (polls) {
+      held = new ArrayList<Poll>(polls);
+      polls.clear();
+    }
+    for (Poll poll : held) {
+      complete(poll);
+    }
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Answers the changes since the requested zxid, or holds the request until there are some.
+   */
+  private void changes(HttpExchange exchange) throws IOException {
+    long since;
+    long timeout = MAX_POLL_TIMEOUT;
+    try {
+      since = Long.decode(getParameter(exchange, "since", "0"));
+      timeout = Math.min(Long.parseLong(getParameter(exchange, "timeout", Long.toString(timeout))), timeout);
+    } catch (NumberFormatException e) {
+      respond(exchange, 400, "Invalid since or timeout: " + e.getMessage());
+      return;
+    }
+    if (timeout <= 0 || lastZxid.get() > since) {
+      respond(exchange, 200, toJson(since));
+      return;
+    }
+    final Poll poll = new Poll(exchange, since);
+    synchronized (polls) {
+      polls.add(poll);
+      poll.expiry = zk.getScheduler().schedule(new Runnable() {
+        public void run() {
+          expire(poll);
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+    }
+    // A change may have arrived before the request was held
+    if (lastZxid.get() > since) {
+      wake();
+    }
+  }
+
+  /**
+   * Keeps the zxid of the last change, without scanning the stages, and answers the held
+   * requests that it is newer than.
+   */
+  public void nodeChanged(String stage, String subNode, StateMirror.NodeValue value) {
+    advance(value.getMzxid());
+    wake();
+  }
+
+  private void advance(long zxid) {
+    long last;
+    while (zxid > (last = lastZxid.get()) && !lastZxid.compareAndSet(last, zxid)) {
+      // Lost a race with a newer change; check again
+    }
+  }
+
+  /**
+   * Answers the held requests older than the last change.
+   */
+  private void wake() {
+    long last = lastZxid.get();
+    List<Poll> ready = new ArrayList<Poll>();
+    synchronized (polls) {
+      for (Iterator<Poll> it = polls.iterator(); it.hasNext(); ) {
+        Poll poll = it.next();
+        if (last > poll.since) {
+          it.remove();
+          ready.add(poll);
+        }
+      }
+    }
+    for (Poll poll : ready) {
+      poll.expiry.cancel(false);
+      complete(poll);
+    }
+  }
+
+  private void expire(Poll poll) {
+    synchronized (polls) {
+      if (!polls.remove(poll)) {
+        return;
+      }
+    }
+    complete(poll);
+  }
+
+  /**
+   * Sends the changes of a held request on the worker pool, since the client may be slow to read.
+   */
+  private void complete(final Poll poll) {
+    zk.getWorkerPool().execute(new Runnable() {
+      public void run() {
+        try {
+          respond(poll.exchange, 200, toJson(poll.since));
+        } catch (IOException e) {
+          logger.debug("Unable to answer a held status request", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Builds the JSON of the stages changed after the zxid, and of the zxid of the last change.
+   */
+  private String toJson(long since) {
+    try {
+      long last = 0;
+      JSONArray stages = new JSONArray();
+      for (String stage : mirror.getStages()) {
+        long zxid = mirror.getStageZxid(stage);
+        last = Math.max(last, zxid);
+        if (zxid > since) {
+          JSONObject obj = new JSONObject();
+          obj.put("node", stage);
+          obj.put("description", mirror.getData(stage, NODE_DESCRIPTION));
+          obj.put("state", mirror.getData(stage, NODE_STATE));
+          obj.put("info", mirror.getData(stage, NODE_STATE_INFO));
+          obj.put("start", mirror.getData(stage, NODE_TIME_START));
+          obj.put("end", mirror.getData(stage, NODE_TIME_END));
+          obj.put("duration", mirror.getData(stage, NODE_DURATION));
+          obj.put("zxid", zxid);
+          stages.put(obj);
+        }
+      }
+      JSONObject status = new JSONObject();
+      status.put("zxid", last);
+      status.put("stages", stages);
+      return status.toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String getParameter(HttpExchange exchange, String name, String defaultValue) {
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        int eq = param.indexOf('=');
+        if (eq > 0 && param.substring(0, eq).equals(name)) {
+          return param.substring(eq + 1);
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = ZKClientBase.encode(body);
+    exchange.getResponseHeaders().set("Content-Type", (status == 200) ? "application/json" : "text/plain");
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    try {
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } finally {
+      exchange.close();
+    }
+  }
+}
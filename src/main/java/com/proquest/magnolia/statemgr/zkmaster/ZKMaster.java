@@ -1,16 +1,26 @@
 package com.proquest.magnolia.statemgr.zkmaster;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proquest.magnolia.statemgr.common.LivenessMonitor;
+import com.proquest.magnolia.statemgr.common.StageRecord;
+import com.proquest.magnolia.statemgr.common.StageStore;
+import com.proquest.magnolia.statemgr.common.StateMirror;
 import com.proquest.magnolia.statemgr.common.ZKClientBase;
 import com.proquest.magnolia.statemgr.common.ZKConstants;
+import com.proquest.magnolia.statemgr.zkclient.ProcessFileReader;
+import com.proquest.magnolia.statemgr.zkclient.ZKProcess;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -19,12 +29,26 @@ import java.util.Properties;
  * Client utility used to configure and initialize ZK state nodes. The input configuration file will be a simple
  * properties format consisting of the node and description.
  */
-public class ZKMaster extends ZKClientBase implements ZKConstants {
+public class ZKMaster extends ZKClientBase implements StateMirror.Listener, ZKConstants {
 
   private static final Logger logger = Logger.getLogger(ZKMaster.class.getName());
 
+  /**
+   * Mode used to report the timing of the last run: the client configuration files
+   * (comma separated) and an optional output directory follow the mode argument.
+   */
+  public static final String MODE_REPORT = "report";
+
+  /**
+   * The port of the HTTP status server; it is only started when set, 0 meaning any free port.
+   */
+  private static final int HTTP_PORT = Integer.getInteger("statemgr.http.port", -1);
+
   private Properties nodeCfg;
+  private StageStore store;
   private String startMode = "";
+  private StateMirror stateMirror = null;
+  private StatusServer statusServer = null;
 
   /**
    * Main entry point.
@@ -35,7 +59,11 @@ public class ZKMaster extends ZKClientBase implements ZKConstants {
     if (args.length >= 3) {
       PropertyConfigurator.configure("./zkmaster-log4j.properties");
       ZKMaster zkMaster = new ZKMaster(args[0], args[1], args[2]);
-      zkMaster.execute();
+      if (MODE_REPORT.equals(args[2]) && args.length >= 4) {
+        System.out.print(zkMaster.report(args[3], (args.length >= 5) ? args[4] : "."));
+      } else {
+        zkMaster.execute();
+      }
     }
   }
 
@@ -43,12 +71,13 @@ public class ZKMaster extends ZKClientBase implements ZKConstants {
    * Constructor.
    * @param zkConnectionStr  The Zookeeper host:port to connect
    * @param propsFile Properties file containing the state configuration
-   * @param startMode Start mode (start, stop, continue)
+   * @param startMode Start mode (start, stop, continue, report)
    * @throws IOException
    */
   public ZKMaster(String zkConnectionStr, String propsFile, String startMode) throws IOException {
     super(zkConnectionStr);
     this.nodeCfg = new Properties();
+    this.store = new StageStore(this);
     this.startMode = startMode;
     
     nodeCfg.load(new BufferedInputStream(new FileInputStream(propsFile)));
@@ -56,100 +85,213 @@ public class ZKMaster extends ZKClientBase implements ZKConstants {
 
   /**
    * Performs the execution for this class. The z-nodes are configured based on the
-   * input properties file.
+   * input properties file and, unless stopping, the nodes are monitored until the user
+   * types quit.
    * @throws IOException
    * @throws InterruptedException
    * @throws KeeperException
    */
   public void execute() throws IOException, InterruptedException, KeeperException {
+    start();
 
-    List<String> znodes = new ArrayList<String>();
+    if (!startMode.equals(MASTER_STATE_STOP)) {
+
+      // Wait for the user to type quit
+      System.out.println("Type quit to stop processing.");
+      byte[] b = new byte[80];
+      while (System.in.read(b) > 0) {
+        String d = new String(b);
+        if (d.startsWith("quit")) {
+          setData(NODE_MASTER, MASTER_STATE_STOP);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Configures the z-nodes based on the input properties file and, unless stopping,
+   * starts monitoring them and sets the master state to start.
+   * @throws InterruptedException
+   * @throws KeeperException
+   */
+  public void start() throws InterruptedException, KeeperException {
+
+    openJournal("master");
 
     // Create the master the master node and initialize
     if (startMode.equals(MASTER_STATE_STOP)) {
       setData(NODE_MASTER, MASTER_STATE_STOP);
     }
 
-    // Create all nodes based on configuration file.
-    for (Map.Entry<Object,Object> entry : nodeCfg.entrySet()) {
-      String node = (String) entry.getKey();
-      String desc = (String) entry.getValue();
+    List<String> stages = new ArrayList<String>();
+    for (Object key : nodeCfg.keySet()) {
+      stages.add((String) key);
+    }
 
-      setData(node + NODE_DESCRIPTION, desc);
+    // The instances of matrix stages, as published by their clients, are reset along with the stages
+    Map<String,String> descriptions = getMatrixInstances(stages);
+    int instances = descriptions.size();
+    for (String stage : stages) {
+      descriptions.put(stage, nodeCfg.getProperty(stage));
+    }
+    List<String> nodes = new ArrayList<String>(descriptions.keySet());
+
+    // If mode continue, read all of the current node states in one go
+    List<StageRecord> records = null;
+    if (startMode.equals(MASTER_STATE_CONTINUE)) {
+      records = store.read(nodes);
+    }
+
+    // Create all nodes based on configuration file. The writes are pipelined and
+    // only waited on once all of them have been submitted. Matrix instances are written
+    // first, so they have been reset by the time the join sees its stage reset.
+    List<ListenableFuture<List<Stat>>> writes = new ArrayList<ListenableFuture<List<Stat>>>();
+    for (int i = 0; i < nodes.size(); i++) {
+      if (i == instances) {
+        waitFor(Futures.allAsList(writes));
+      }
+      String node = nodes.get(i);
+      Map<String,String> fields = new LinkedHashMap<String, String>();
+      fields.put(NODE_DESCRIPTION, descriptions.get(node));
 
       // If mode start, initialize all node data
       if (startMode.equals(MASTER_STATE_START)) {
-        setData(node + NODE_STATE, STATE_IDLE);
-        setData(node + NODE_STATE_INFO, "");
-        setData(node + NODE_TIME_START, "");
-        setData(node + NODE_TIME_END, "");
+        fields.put(NODE_STATE, STATE_IDLE);
+        fields.put(NODE_STATE_INFO, "");
+        fields.put(NODE_TIME_START, "");
+        fields.put(NODE_TIME_END, "");
 
       // If mode continue, only setup the node state to idle and only if it previously didn't succeed
       } else if (startMode.equals(MASTER_STATE_CONTINUE)) {
-        String data = getData(node + NODE_STATE);
-        if (!STATE_SUCCESS.equals(data)) {
-          setData(node + NODE_STATE, STATE_IDLE);
+        if (!STATE_SUCCESS.equals(records.get(i).get(NODE_STATE))) {
+          fields.put(NODE_STATE, STATE_IDLE);
         }
       }
-
-      // Setup a watch on the nodes
-      zookeeper.exists(node+NODE_STATE, this);
-      zookeeper.exists(node+NODE_STATE_INFO, this);
+      writes.add(store.update(node, fields));
     }
+    waitFor(Futures.allAsList(writes));
 
     // Create the master the master node and initialize
     if (!startMode.equals(MASTER_STATE_STOP)) {
+
+      // Mirror the state of the nodes so they can be reported without reading them back
+      stateMirror = new StateMirror(this);
+      stateMirror.addListener(this);
+      // Watches the owners of the running stages and acts on the stages of dead runners
+      new LivenessMonitor(this, stateMirror);
+      for (String node : nodes) {
+        stateMirror.addStage(node);
+      }
+      stateMirror.startRefresh(Long.getLong("statemgr.mirror.refresh", 60000L));
+      if (HTTP_PORT >= 0) {
+        startStatusServer();
+      }
+
       setData(NODE_MASTER, MASTER_STATE_START);
+    }
+  }
 
-      // Wait for the user to type quit
-      System.out.println("Type quit to stop processing.");
-      byte[] b = new byte[80];
-      while (System.in.read(b) > 0) {
-        String d = new String(b);
-        if (d.startsWith("quit")) {
-          setData(NODE_MASTER, MASTER_STATE_STOP);
-          break;
+  /**
+   * Serves the mirrored state over HTTP. The status is only a view, so failing to serve
+   * it does not stop the run.
+   */
+  private synchronized void startStatusServer() {
+    statusServer = new StatusServer(this, stateMirror);
+    try {
+      statusServer.start(HTTP_PORT);
+    } catch (IOException e) {
+      logger.warn(String.format("Unable to start the HTTP status server {port=[%d]}", HTTP_PORT), e);
+      statusServer = null;
+    }
+  }
+
+  @Override
+  protected synchronized void doClose() {
+    if (statusServer != null) {
+      statusServer.stop();
+      statusServer = null;
+    }
+  }
+
+  /**
+   * Reads the matrix values published by the clients of the stages in one pipelined batch.
+   * @param stages  The stage nodes
+   * @return Map of the node of every matrix instance to its description, in stage order
+   */
+  private Map<String,String> getMatrixInstances(List<String> stages) throws InterruptedException, KeeperException {
+    List<String> paths = new ArrayList<String>(stages.size());
+    for (String stage : stages) {
+      paths.add(stage + NODE_MATRIX);
+    }
+    List<String> matrices = waitFor(getDataAsync(paths));
+    Map<String,String> instances = new LinkedHashMap<String, String>();
+    for (int i = 0; i < stages.size(); i++) {
+      for (String value : matrices.get(i).split(",")) {
+        if (value.length() > 0) {
+          instances.put(stages.get(i) + "/" + value, nodeCfg.getProperty(stages.get(i)) + " " + value);
         }
       }
     }
+    return instances;
   }
 
   /**
-   * Handles events by outputting updates to a log file.
-   * @param event
+   * Generates the timing report of the last run.
+   * @param clientCfgFiles  Comma separated list of the client configuration files
+   * @param outputDir       The directory to write the report files to
+   * @return The text summary
+   * @throws Exception
    */
-  @Override
-  public void process(WatchedEvent event) {
-    super.process(event);
-    if (!startMode.equalsIgnoreCase(MASTER_STATE_STOP)) {
-      
-      String path = event.getPath();
-      if (path != null && (path.endsWith(NODE_STATE) || path.endsWith(NODE_STATE_INFO))) {
-        
-        String rootPath = "";
-        if (path.endsWith(NODE_STATE)) {
-          rootPath = path.substring(0, path.length() - NODE_STATE.length());
-        } else if (path.endsWith(NODE_STATE_INFO)) {
-          rootPath = path.substring(0, path.length() - NODE_STATE_INFO.length());
+  public String report(String clientCfgFiles, String outputDir) throws Exception {
+    List<ZKProcess> processes = new ArrayList<ZKProcess>();
+    for (String cfg : clientCfgFiles.split(",")) {
+      processes.addAll(new ProcessFileReader().read(cfg.trim()));
+    }
+    RunReport report = new RunReport(this, nodeCfg, processes);
+    return report.generate(new File(outputDir));
+  }
+
+  /**
+   * @return  The mirror of the node states, or null if the nodes are not being watched
+   */
+  public StateMirror getStateMirror() {
+    return stateMirror;
+  }
+
+  /**
+   * @return  The HTTP status server, or null if it is not running
+   */
+  public StatusServer getStatusServer() {
+    return statusServer;
+  }
+
+  /**
+   * Handles node changes by outputting updates to a log file. All of the
+   * data is read from the state mirror.
+   * @param stage   The stage node
+   * @param subNode The changed sub-node
+   * @param value   The new value
+   */
+  public void nodeChanged(String stage, String subNode, StateMirror.NodeValue value) {
+    if (subNode.equals(NODE_STATE) || subNode.equals(NODE_STATE_INFO) || subNode.equals(NODE_RECORD)) {
+
+      String state = stateMirror.getData(stage, NODE_STATE);
+      if (state.length() > 0) {
+        String desc = stateMirror.getData(stage, NODE_DESCRIPTION);
+        String stateInfo = stateMirror.getData(stage, NODE_STATE_INFO);
+
+        String logStr = "";
+        if (stateInfo.length() > 0) {
+          logStr = String.format("[%s] %s (%s : %s)", stage, desc, state, stateInfo);
+        } else {
+          logStr = String.format("[%s] %s (%s)", stage, desc, state);
         }
 
-        String state = getData(rootPath + NODE_STATE);
-        if (state.length() > 0) {
-          String desc = getData(rootPath + NODE_DESCRIPTION);
-          String stateInfo = getData(rootPath + NODE_STATE_INFO);
-
-          String logStr = "";
-          if (stateInfo.length() > 0) {
-            logStr = String.format("[%s] %s (%s : %s)", rootPath, desc, state, stateInfo);
-          } else {
-            logStr = String.format("[%s] %s (%s)", rootPath, desc, state);
-          }
-
-          if (state.equals(STATE_ERROR)) {
-            logger.error(logStr);
-          } else {
-            logger.info(logStr);
-          }
+        if (state.equals(STATE_ERROR)) {
+          logger.error(logStr);
+        } else {
+          logger.info(logStr);
         }
       }
     }
@@ -0,0 +1,74 @@
+package com.proquest.magnolia.statemgr.bench;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * A standalone, in-process ZooKeeper server backed by a temporary directory. Used by the
+ * benchmark and load harnesses so they can run without a real ensemble.
+ */
+public class EmbeddedZooKeeper {
+
+  private static final Logger logger = Logger.getLogger(EmbeddedZooKeeper.class.getName());
+
+  private File dataDir;
+  private ZooKeeperServer server;
+  private NIOServerCnxn.Factory factory;
+
+  /**
+   * Starts the server on the specified port.
+   * @param port  The client port, or 0 to pick a free one
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void start(int port) throws IOException, InterruptedException {
+    dataDir = File.createTempFile("zk-embedded", "");
+    if (!dataDir.delete() || !dataDir.mkdirs()) {
+      throw new IOException("Unable to create the data directory " + dataDir);
+    }
+    server = new ZooKeeperServer(dataDir, dataDir, 2000);
+    factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", port));
+    factory.startup(server);
+    logger.info(String.format("Embedded ZooKeeper started {port=[%d], dir=[%s]}", getPort(), dataDir));
+  }
+
+  /**
+   * Stops the server and removes its data directory.
+   */
+  public void stop() {
+    if (factory != null) {
+      factory.shutdown();
+      factory = null;
+    }
+    if (dataDir != null) {
+      delete(dataDir);
+      dataDir = null;
+    }
+  }
+
+  public int getPort() {
+    return factory.getLocalPort();
+  }
+
+  /**
+   * @return  The connection string for clients ("127.0.0.1:port")
+   */
+  public String getConnectString() {
+    return "127.0.0.1:" + getPort();
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,334 @@
+package com.proquest.magnolia.statemgr.bench;
+
+import com.proquest.magnolia.statemgr.common.StateMirror;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.common.ZKConstants;
+import com.proquest.magnolia.statemgr.common.ZKMetrics;
+import com.proquest.magnolia.statemgr.zkclient.ZKClient;
+import com.proquest.magnolia.statemgr.zkmaster.ZKMaster;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scale test of a synthetic pipeline. A layered DAG of stages is generated as a master
+ * properties file and client configuration files, and run end to end against an in-process
+ * ZooKeeper server with no-op (or sleeping) stages. Each pipeline size produces one row of
+ * the report: makespan, scheduling overhead per stage on the critical path, ZK operations per
+ * state transition as counted by the clients and the master, peak thread count and heap. With <code>-shared true</code> the stages are
+ * published to ZK and claimed by the clients in shared mode instead of being split between them.
+ *
+ * Usage: PipelineLoadTest [-stages n[,n...]] [-width n] [-fanin n] [-sleep ms] [-clients n]
+ *                         [-slots n] [-shared true|false] [-seed n] [-dir path]
+ */
+public class PipelineLoadTest implements ZKConstants {
+
+  private static final Logger logger = Logger.getLogger(PipelineLoadTest.class.getName());
+
+  private static final long RUN_TIMEOUT = Long.getLong("statemgr.load.timeout", 30L * 60 * 1000);
+  private static final long SAMPLE_INTERVAL = 50;
+
+  private int[] sizes = {100};
+  private int width = 10;
+  private int fanIn = 2;
+  private long sleep = 0;
+  private int clients = 1;
+  private int slots = 0;
+  private boolean shared = false;
+  private long seed = 1;
+  private File dir = null;
+
+  /**
+   * The measurements of a single pipeline size.
+   */
+  static class Result {
+    int stages;
+    int depth;
+    long initMillis;
+    long makespan;
+    long ideal;
+    long zkOps;
+    int peakThreads;
+    long peakHeap;
+    long retainedHeap;
+    boolean failed;
+
+    double getOverheadPerStage() {
+      return (double) (makespan - ideal) / depth;
+    }
+
+    double getOpsPerTransition() {
+      // Every stage goes through two transitions: IN_PROGRESS and SUCCESS
+      return (double) zkOps / (2 * stages);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    PipelineLoadTest test = new PipelineLoadTest();
+    for (int i = 0; i < args.length - 1; i += 2) {
+      String value = args[i + 1];
+      if ("-stages".equals(args[i])) {
+        String[] parts = value.split(",");
+        test.sizes = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) {
+          test.sizes[j] = Integer.parseInt(parts[j].trim());
+        }
+      } else if ("-width".equals(args[i])) {
+        test.width = Integer.parseInt(value);
+      } else if ("-fanin".equals(args[i])) {
+        test.fanIn = Integer.parseInt(value);
+      } else if ("-sleep".equals(args[i])) {
+        test.sleep = Long.parseLong(value);
+      } else if ("-clients".equals(args[i])) {
+        test.clients = Integer.parseInt(value);
+      } else if ("-slots".equals(args[i])) {
+        test.slots = Integer.parseInt(value);
+      } else if ("-shared".equals(args[i])) {
+        test.shared = Boolean.parseBoolean(value);
+      } else if ("-seed".equals(args[i])) {
+        test.seed = Long.parseLong(value);
+      } else if ("-dir".equals(args[i])) {
+        test.dir = new File(value);
+      } else {
+        System.err.println("Usage: PipelineLoadTest [-stages n[,n...]] [-width n] [-fanin n] [-sleep ms] [-clients n] [-slots n] [-shared true|false] [-seed n] [-dir path]");
+        System.exit(1);
+      }
+    }
+    System.out.print(test.run());
+    System.exit(0);
+  }
+
+  /**
+   * Runs every pipeline size in turn, each against a fresh ZooKeeper server.
+   * @return The report
+   */
+  public String run() throws Exception {
+    if (dir == null) {
+      dir = File.createTempFile("pipeline", "");
+      dir.delete();
+    }
+    dir.mkdirs();
+    if (System.getProperty("statemgr.capture.dir") == null) {
+      System.setProperty("statemgr.capture.dir", new File(dir, "logs").getPath());
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Pipeline: width=%d, fanin=%d, sleep=%dms, clients=%d, slots=%d, shared=%b, configs=%s%n",
+        width, fanIn, sleep, clients, slots, shared, dir.getAbsolutePath()));
+    sb.append(String.format("%8s %6s %9s %11s %9s %13s %9s %11s %9s %10s %12s%n", "Stages", "Depth", "Init ms",
+        "Makespan ms", "Ideal ms", "Overhead/stg", "ZK ops", "Ops/transn", "Threads", "Heap MB", "Retained MB"));
+    for (int stages : sizes) {
+      Result r = runPipeline(stages);
+      sb.append(String.format("%8d %6d %9d %11d %9d %13.1f %9d %11.2f %9d %10.1f %12.1f%s%n", r.stages, r.depth,
+          r.initMillis, r.makespan, r.ideal, r.getOverheadPerStage(), r.zkOps, r.getOpsPerTransition(),
+          r.peakThreads, r.peakHeap / 1048576.0, r.retainedHeap / 1048576.0, r.failed ? "  FAILED" : ""));
+    }
+    return sb.toString();
+  }
+
+  private Result runPipeline(int stages) throws Exception {
+    File sizeDir = new File(dir, String.valueOf(stages));
+    sizeDir.mkdirs();
+    List<String> nodes = new ArrayList<String>();
+    List<List<String>> deps = generate(stages, nodes);
+    File masterCfg = writeMasterConfig(sizeDir, nodes);
+    List<File> clientCfgs = writeClientConfigs(sizeDir, nodes, deps, shared ? 1 : clients);
+
+    Result r = new Result();
+    r.stages = stages;
+    r.depth = (stages + width - 1) / width;
+    r.ideal = r.depth * sleep;
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    threads.resetPeakThreadCount();
+
+    EmbeddedZooKeeper server = new EmbeddedZooKeeper();
+    server.start(0);
+    List<ZKClient> zkClients = new ArrayList<ZKClient>();
+    ZKMaster master = null;
+    try {
+      for (int c = 0; c < clients; c++) {
+        ZKClient client = new ZKClient(server.getConnectString());
+        ZKBenchmark.waitForConnection(client);
+        if (!shared) {
+          client.start(clientCfgs.get(c).getPath());
+        } else {
+          if (c == 0) {
+            client.publish(clientCfgs.get(0).getPath());
+          }
+          client.startShared(slots);
+        }
+        zkClients.add(client);
+      }
+      waitForIdle(zkClients);
+
+      master = new ZKMaster(server.getConnectString(), masterCfg.getPath(), MASTER_STATE_START);
+      ZKBenchmark.waitForConnection(master);
+      long t0 = System.currentTimeMillis();
+      master.start();
+      long started = System.currentTimeMillis();
+      long opsAtStart = getOperationCount(zkClients) + getOperationCount(master);
+      r.initMillis = started - t0;
+
+      // Wait for every stage to finish, sampling the threads and heap as we go
+      StateMirror mirror = master.getStateMirror();
+      long deadline = started + RUN_TIMEOUT;
+      while (true) {
+        r.peakHeap = Math.max(r.peakHeap, memory.getHeapMemoryUsage().getUsed());
+        int done = 0;
+        for (String node : nodes) {
+          String state = mirror.getData(node, NODE_STATE);
+          if (STATE_SUCCESS.equals(state)) {
+            done++;
+          } else if (STATE_ERROR.equals(state)) {
+            r.failed = true;
+          }
+        }
+        if (done == nodes.size() || r.failed || System.currentTimeMillis() > deadline) {
+          r.failed |= done < nodes.size();
+          break;
+        }
+        Thread.sleep(SAMPLE_INTERVAL);
+      }
+      r.makespan = System.currentTimeMillis() - started;
+      r.zkOps = getOperationCount(zkClients) + getOperationCount(master) - opsAtStart;
+      r.peakThreads = threads.getPeakThreadCount();
+      System.gc();
+      r.retainedHeap = memory.getHeapMemoryUsage().getUsed();
+      logger.info(String.format("Pipeline finished {stages=[%d], makespanMs=[%d], failed=[%b]}", stages, r.makespan, r.failed));
+    } finally {
+      for (ZKClient client : zkClients) {
+        client.close();
+        client.getZookeeper().close();
+      }
+      if (master != null) {
+        master.close();
+        master.getZookeeper().close();
+      }
+      server.stop();
+    }
+    return r;
+  }
+
+  /**
+   * Generates a layered DAG: every layer holds up to width stages and every stage depends on
+   * up to fanin distinct stages of the previous layer. The stages of the first layer depend on
+   * the master node.
+   * @param stages  The number of stages
+   * @param nodes   Receives the stage nodes
+   * @return The dependencies of each stage
+   */
+  List<List<String>> generate(int stages, List<String> nodes) {
+    Random random = new Random(seed);
+    List<List<String>> deps = new ArrayList<List<String>>();
+    String master = NODE_MASTER.substring(0, NODE_MASTER.length() - NODE_STATE.length());
+    for (int i = 0; i < stages; i++) {
+      int layer = i / width;
+      nodes.add(String.format("/load/L%03d/S%04d", layer, i % width));
+      List<String> stageDeps = new ArrayList<String>();
+      if (layer == 0) {
+        stageDeps.add(master);
+      } else {
+        int prevStart = (layer - 1) * width;
+        int prevSize = width;
+        int edges = Math.min(fanIn, prevSize);
+        // The stage in the same column always feeds this one, so every layer is on the critical path
+        stageDeps.add(nodes.get(prevStart + i % width));
+        while (stageDeps.size() < edges) {
+          String dep = nodes.get(prevStart + random.nextInt(prevSize));
+          if (!stageDeps.contains(dep)) {
+            stageDeps.add(dep);
+          }
+        }
+      }
+      deps.add(stageDeps);
+    }
+    return deps;
+  }
+
+  private File writeMasterConfig(File sizeDir, List<String> nodes) throws IOException {
+    File file = new File(sizeDir, "zkmaster.properties");
+    Writer w = new FileWriter(file);
+    try {
+      for (String node : nodes) {
+        w.write(node + "=Synthetic stage " + node + "\n");
+      }
+    } finally {
+      w.close();
+    }
+    return file;
+  }
+
+  private List<File> writeClientConfigs(File sizeDir, List<String> nodes, List<List<String>> deps, int parts)
+      throws IOException {
+    String path = (sleep > 0) ? "sleep" : "true";
+    String args = (sleep > 0) ? BigDecimal.valueOf(sleep).movePointLeft(3).toPlainString() : "";
+    List<File> files = new ArrayList<File>();
+    for (int c = 0; c < parts; c++) {
+      File file = new File(sizeDir, "zkclient-" + c + ".xml");
+      Writer w = new FileWriter(file);
+      try {
+        w.write((slots > 0) ? "<Processes slots=\"" + slots + "\">\n" : "<Processes>\n");
+        for (int i = c; i < nodes.size(); i += parts) {
+          w.write("  <Process>\n");
+          w.write("    <path>" + path + "</path>\n");
+          w.write("    <args>" + args + "</args>\n");
+          w.write("    <type>shell</type>\n");
+          w.write("    <node>" + nodes.get(i) + "</node>\n");
+          for (String dep : deps.get(i)) {
+            w.write("    <dependency>" + dep + "</dependency>\n");
+          }
+          w.write("  </Process>\n");
+        }
+        w.write("</Processes>\n");
+      } finally {
+        w.close();
+      }
+      files.add(file);
+    }
+    return files;
+  }
+
+  /**
+   * Waits until the clients have finished their initial reads, i.e. they have not issued an
+   * operation for a while.
+   */
+  private static void waitForIdle(Collection<? extends ZKClientBase> clients) throws InterruptedException {
+    long last = -1;
+    long ops = getOperationCount(clients);
+    while (ops != last) {
+      Thread.sleep(500);
+      last = ops;
+      ops = getOperationCount(clients);
+    }
+  }
+
+  private static long getOperationCount(Collection<? extends ZKClientBase> clients) {
+    long ops = 0;
+    for (ZKClientBase client : clients) {
+      ops += getOperationCount(client);
+    }
+    return ops;
+  }
+
+  /**
+   * @return  The number of ZooKeeper operations the client has sent to the server so far
+   */
+  private static long getOperationCount(ZKClientBase client) {
+    ZKMetrics metrics = client.getMetrics();
+    return metrics.getGetData().getCount() + metrics.getSetData().getCount() + metrics.getCreate().getCount()
+        + metrics.getDelete().getCount() + metrics.getExists().getCount() + metrics.getGetChildren().getCount();
+  }
+}
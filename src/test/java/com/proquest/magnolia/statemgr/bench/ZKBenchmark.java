@@ -0,0 +1,372 @@
+package com.proquest.magnolia.statemgr.bench;
+
+import com.proquest.magnolia.statemgr.common.DataMonitor;
+import com.proquest.magnolia.statemgr.common.ZKClientBase;
+import com.proquest.magnolia.statemgr.zkclient.OutputCapture;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of the ZooKeeper client hot paths against an in-process ZooKeeper server.
+ * Every benchmark is warmed up and then timed per operation; the report shows the throughput,
+ * the latency percentiles and the bytes allocated per operation across all threads.
+ *
+ * Usage: ZKBenchmark [-iterations n] [-warmup n] [-filter name] [-save file] [-baseline file]
+ *
+ * The results can be saved to a properties file and compared against on a later run.
+ */
+public class ZKBenchmark {
+
+  private static final Logger logger = Logger.getLogger(ZKBenchmark.class.getName());
+
+  private static final String ROOT = "/bench";
+
+  private int iterations = 2000;
+  private int warmup = 500;
+  private String filter = null;
+  private File saveFile = null;
+  private File baselineFile = null;
+
+  private ZKClientBase zk;
+  private List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+  /**
+   * The results of a single benchmark.
+   */
+  static class Result {
+    String name;
+    int ops;
+    double opsPerSec;
+    long[] latencies;
+    long allocatedPerOp;
+
+    double getPercentile(double p) {
+      int index = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+    }
+  }
+
+  /**
+   * A benchmarked operation. setUp and tearDown are not timed.
+   */
+  abstract class Benchmark {
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    void setUp() throws Exception {
+    }
+
+    abstract void op(int i) throws Exception;
+
+    void tearDown() throws Exception {
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ZKBenchmark bench = new ZKBenchmark();
+    for (int i = 0; i < args.length - 1; i += 2) {
+      if ("-iterations".equals(args[i])) {
+        bench.iterations = Integer.parseInt(args[i + 1]);
+      } else if ("-warmup".equals(args[i])) {
+        bench.warmup = Integer.parseInt(args[i + 1]);
+      } else if ("-filter".equals(args[i])) {
+        bench.filter = args[i + 1];
+      } else if ("-save".equals(args[i])) {
+        bench.saveFile = new File(args[i + 1]);
+      } else if ("-baseline".equals(args[i])) {
+        bench.baselineFile = new File(args[i + 1]);
+      } else {
+        System.err.println("Usage: ZKBenchmark [-iterations n] [-warmup n] [-filter name] [-save file] [-baseline file]");
+        System.exit(1);
+      }
+    }
+    bench.run();
+    System.exit(0);
+  }
+
+  public void run() throws Exception {
+    EmbeddedZooKeeper server = new EmbeddedZooKeeper();
+    server.start(0);
+    try {
+      zk = new ZKClientBase(server.getConnectString());
+      waitForConnection(zk);
+      zk.ensurePathExists(ROOT);
+      addBenchmarks();
+
+      List<Result> results = new ArrayList<Result>();
+      for (Benchmark b : benchmarks) {
+        if (filter == null || b.name.contains(filter)) {
+          results.add(measure(b));
+        }
+      }
+      Properties baseline = (baselineFile != null) ? load(baselineFile) : null;
+      System.out.print(format(results, baseline));
+      if (saveFile != null) {
+        save(results, saveFile);
+      }
+      zk.close();
+      zk.getZookeeper().close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  static void waitForConnection(ZKClientBase zk) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (zk.getZookeeper().getState() != ZooKeeper.States.CONNECTED) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IllegalStateException("Timed out connecting to ZooKeeper");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private void addBenchmarks() {
+    benchmarks.add(new Benchmark("setData") {
+      void op(int i) throws Exception {
+        zk.setData(ROOT + "/set/State", "value-" + i);
+      }
+    });
+    benchmarks.add(new Benchmark("setData.create") {
+      int run = 0;
+
+      void setUp() {
+        run++;
+      }
+
+      void op(int i) throws Exception {
+        zk.setData(ROOT + "/create" + run + "/node" + i + "/State", "value-" + i);
+      }
+    });
+    benchmarks.add(new Benchmark("getData") {
+      void setUp() throws Exception {
+        zk.setData(ROOT + "/get/State", "value");
+      }
+
+      void op(int i) {
+        zk.getData(ROOT + "/get/State");
+      }
+    });
+    benchmarks.add(new Benchmark("ensurePathExists") {
+      void op(int i) {
+        zk.ensurePathExists(ROOT + "/ensure/a/b/c");
+      }
+    });
+    benchmarks.add(new Benchmark("setDataAsync.batch10") {
+      void op(int i) throws Exception {
+        Map<String,String> writes = new LinkedHashMap<String, String>();
+        for (int j = 0; j < 10; j++) {
+          writes.put(ROOT + "/batch/node" + j + "/State", "value-" + i);
+        }
+        ZKClientBase.waitFor(zk.setDataAsync(writes));
+      }
+    });
+    benchmarks.add(new DataMonitorBenchmark());
+    benchmarks.add(new OutputCaptureBenchmark());
+  }
+
+  /**
+   * Time from a write until a DataMonitor listener has been called with the new value.
+   */
+  class DataMonitorBenchmark extends Benchmark implements DataMonitor.DataMonitorListener {
+    private final String path = ROOT + "/monitor/State";
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+    private DataMonitor monitor = null;
+
+    DataMonitorBenchmark() {
+      super("dataMonitor.event");
+    }
+
+    void setUp() throws Exception {
+      if (monitor == null) {
+        zk.setData(path, "initial");
+        monitor = new DataMonitor(zk, Collections.singletonList(path), this);
+        await("initial");
+      }
+    }
+
+    void op(int i) throws Exception {
+      String value = "value-" + i + "-" + System.nanoTime();
+      zk.setData(path, value);
+      await(value);
+    }
+
+    private void await(String value) throws InterruptedException {
+      while (true) {
+        String data = received.poll(10, TimeUnit.SECONDS);
+        if (data == null) {
+          throw new IllegalStateException("Timed out waiting for the DataMonitor event");
+        }
+        if (value.equals(data)) {
+          return;
+        }
+      }
+    }
+
+    public void exists(String path, String data) {
+      received.add(data);
+    }
+
+    public void closing(int rc) {
+    }
+  }
+
+  /**
+   * Capturing 1000 lines of process output, including the spill to the log file.
+   */
+  class OutputCaptureBenchmark extends Benchmark {
+    private byte[] output;
+
+    OutputCaptureBenchmark() {
+      super("outputCapture.1000lines");
+    }
+
+    void setUp() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 1000; i++) {
+        sb.append("2012-01-01 00:00:00,000 INFO  [main] com.example.Stage - processed record ").append(i).append('\n');
+      }
+      output = sb.toString().getBytes();
+    }
+
+    void op(int i) {
+      OutputCapture capture = new OutputCapture(new ByteArrayInputStream(output), ROOT + "/capture");
+      capture.run();
+    }
+
+    /**
+     * Deletes the log file and every file rotated out of it.
+     */
+    void tearDown() {
+      File log = new OutputCapture(new ByteArrayInputStream(new byte[0]), ROOT + "/capture").getLogFile();
+      File[] files = log.getAbsoluteFile().getParentFile().listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().equals(log.getName()) || file.getName().startsWith(log.getName() + ".")) {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+
+  private Result measure(Benchmark b) throws Exception {
+    logger.info(String.format("Running benchmark {name=[%s], warmup=[%d], iterations=[%d]}", b.name, warmup, iterations));
+    b.setUp();
+    for (int i = 0; i < warmup; i++) {
+      b.op(i);
+    }
+    b.tearDown();
+
+    b.setUp();
+    long[] latencies = new long[iterations];
+    long allocated = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      long t0 = System.nanoTime();
+      b.op(i);
+      latencies[i] = System.nanoTime() - t0;
+    }
+    long elapsed = System.nanoTime() - start;
+    allocated = getAllocatedBytes() - allocated;
+    b.tearDown();
+
+    Arrays.sort(latencies);
+    Result r = new Result();
+    r.name = b.name;
+    r.ops = iterations;
+    r.opsPerSec = iterations / (elapsed / 1e9);
+    r.latencies = latencies;
+    r.allocatedPerOp = (allocated >= 0) ? allocated / iterations : -1;
+    return r;
+  }
+
+  /**
+   * @return  The bytes allocated so far by all live threads, or -1 if the JVM does not support it
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean sunMx = (com.sun.management.ThreadMXBean) mx;
+    if (!sunMx.isThreadAllocatedMemorySupported() || !sunMx.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    long total = 0;
+    for (long bytes : sunMx.getThreadAllocatedBytes(mx.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+
+  static String format(List<Result> results, Properties baseline) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-26s %12s %10s %10s %10s %10s %12s%s%n", "Benchmark", "ops/s", "p50 us", "p90 us",
+        "p99 us", "max us", "bytes/op", (baseline != null) ? "   vs baseline" : ""));
+    for (Result r : results) {
+      sb.append(String.format("%-26s %12.1f %10.1f %10.1f %10.1f %10.1f %12d", r.name, r.opsPerSec,
+          r.getPercentile(50), r.getPercentile(90), r.getPercentile(99), r.getPercentile(100), r.allocatedPerOp));
+      if (baseline != null && baseline.getProperty(r.name + ".opsPerSec") != null) {
+        double baseOps = Double.parseDouble(baseline.getProperty(r.name + ".opsPerSec"));
+        double baseP99 = Double.parseDouble(baseline.getProperty(r.name + ".p99"));
+        sb.append(String.format("   ops %+.1f%%, p99 %+.1f%%", (r.opsPerSec / baseOps - 1) * 100,
+            (r.getPercentile(99) / baseP99 - 1) * 100));
+      }
+      sb.append(String.format("%n"));
+    }
+    return sb.toString();
+  }
+
+  private static void save(List<Result> results, File file) throws IOException {
+    Properties props = new Properties();
+    for (Result r : results) {
+      props.setProperty(r.name + ".opsPerSec", String.valueOf(r.opsPerSec));
+      props.setProperty(r.name + ".p50", String.valueOf(r.getPercentile(50)));
+      props.setProperty(r.name + ".p99", String.valueOf(r.getPercentile(99)));
+      props.setProperty(r.name + ".bytesPerOp", String.valueOf(r.allocatedPerOp));
+    }
+    OutputStream os = new FileOutputStream(file);
+    try {
+      props.store(os, "ZKBenchmark results");
+    } finally {
+      os.close();
+    }
+  }
+
+  private static Properties load(File file) throws IOException {
+    Properties props = new Properties();
+    InputStream is = new FileInputStream(file);
+    try {
+      props.load(is);
+    } finally {
+      is.close();
+    }
+    return props;
+  }
+}